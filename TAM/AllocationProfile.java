@@ -0,0 +1,129 @@
+package TAM;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The heap allocations of a program run by the reference loop, by the
+ * code address of the call that made them: the new primitive, or one of
+ * the dynamic string primitives that build a string on the heap.
+ * <p>
+ * For each site it counts the blocks and words allocated, and the blocks
+ * and words among them not yet freed by dispose, by the end of a region
+ * or by the garbage collector. When the program stops, the words still
+ * live show where it leaks. If the data store fills up, the request that
+ * failed is recorded too. Blocks restored from a snapshot belong to no
+ * site.
+ */
+
+final class AllocationProfile {
+
+    private final TamVM vm;
+
+    final long[] blocks = new long[Machine.PB], words = new long[Machine.PB];
+    final long[] liveBlocks = new long[Machine.PB], liveWords = new long[Machine.PB];
+
+    // for each address that starts an allocated block, the site that
+    // allocated it, or -1
+    private final int[] siteOf;
+
+    // the site and size of the request that found the data store full, or
+    // -1 if none has
+    private int failedSite = -1, failedSize;
+
+    AllocationProfile(TamVM vm) {
+        this.vm = vm;
+        siteOf = new int[vm.HB];
+        Arrays.fill(siteOf, -1);
+    }
+
+
+// COUNTING
+
+    /**
+     * Counts a block of the given size just allocated at addr by the
+     * instruction at CP.
+     */
+    void allocated(int addr, int size) {
+        int site = vm.CP;
+        if ((site < Machine.CB) || (site >= Machine.PB))
+            return;
+        siteOf[addr] = site;
+        blocks[site]++;
+        words[site] += size;
+        liveBlocks[site]++;
+        liveWords[site] += size;
+    }
+
+    void freed(int addr, int size) {
+        int site = siteOf[addr];
+        if (site < 0)
+            return;
+        siteOf[addr] = -1;
+        liveBlocks[site]--;
+        liveWords[site] -= size;
+    }
+
+    void failed(int size) {
+        failedSite = vm.CP;
+        failedSize = size;
+    }
+
+
+// REPORTING
+
+    private String source(int addr) {
+        return (vm.debugInfo == null) ? "" : vm.debugInfo.describe(addr);
+    }
+
+    private Integer[] sites(long[] counts) {
+        // Returns the sites whose counts are not zero, highest count first.
+        ArrayList<Integer> sites = new ArrayList<Integer>();
+        for (int addr = Machine.CB; addr < vm.CT; addr++)
+            if (counts[addr] > 0)
+                sites.add(addr);
+        Integer[] sorted = sites.toArray(new Integer[0]);
+        Arrays.sort(sorted, Comparator.comparingLong((Integer addr) -> -counts[addr]));
+        return sorted;
+    }
+
+    private void showSites(PrintStream out, String title, Integer[] sites, int limit) {
+        out.println("");
+        out.println(title);
+        out.println("      blocks        words   live words  address");
+        for (int i = 0; (i < sites.length) && (i < limit); i++) {
+            int addr = sites[i];
+            out.println(String.format("%12d %12d %12d  %d  %-20s %s", blocks[addr], words[addr],
+                    liveWords[addr], addr, Profile.instruction(vm.code[addr]), source(addr)));
+        }
+        if (sites.length > limit)
+            out.println("         ...");
+    }
+
+    /**
+     * Writes the sites that allocated the most words, those that allocated
+     * the most blocks, and those whose blocks are still live.
+     */
+    void show(PrintStream out, int limit) {
+        if (sites(blocks).length == 0) {
+            out.println("");
+            out.println("The program allocated nothing on the heap.");
+        } else {
+            showSites(out, "Allocation sites, by words allocated:", sites(words), limit);
+            showSites(out, "Allocation sites, by blocks allocated:", sites(blocks), limit);
+            Integer[] live = sites(liveWords);
+            if (live.length == 0) {
+                out.println("");
+                out.println("Every block allocated has been freed.");
+            } else
+                showSites(out, "Allocation sites, by words still live:", live, limit);
+        }
+        if (failedSite >= 0) {
+            out.println("");
+            out.println("The data store was full when " + vm.describe(failedSite)
+                    + " asked for " + failedSize + " words.");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package TAM;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Compiles the TAM code in the given file into a self-contained, runnable
+ * JAR file.
+ * <p>
+ * Every routine of the program is translated into a class of its own, as
+ * the interpreter's JIT would translate it, and the JAR also holds the
+ * object program and the classes of the TAM package needed to run it.
+ * The program must pass the Verifier.
+ * <p>
+ * For example:
+ * <pre>
+ *   java TAM.ClassCompiler obj.tam obj.jar
+ *   java -jar obj.jar
+ * </pre>
+ */
+
+public class ClassCompiler {
+
+    static String objectName, jarName;
+
+    static TamVM vm;
+
+    private static void addEntry(JarOutputStream jar, String name, byte[] bytes) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(bytes);
+        jar.closeEntry();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] bytes = in.readAllBytes();
+        in.close();
+        return bytes;
+    }
+
+    /**
+     * Copies the classes of the TAM package, from the directory or JAR
+     * file they were loaded from, into the given JAR.
+     */
+    private static void addRuntime(JarOutputStream jar) throws IOException {
+        File source;
+        try {
+            source = new File(ClassCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException s) {
+            throw new IOException(s);
+        }
+        if (source.isDirectory()) {
+            File[] files = new File(source, "TAM").listFiles();
+            if (files == null)
+                throw new IOException("no TAM classes in " + source);
+            for (File file : files)
+                if (file.getName().endsWith(".class") && !file.getName().startsWith("Routine"))
+                    addEntry(jar, "TAM/" + file.getName(), readAll(new FileInputStream(file)));
+        } else {
+            JarFile runtime = new JarFile(source);
+            for (Enumeration<JarEntry> e = runtime.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                if (entry.getName().startsWith("TAM/") && entry.getName().endsWith(".class")
+                        && !entry.getName().startsWith("TAM/Routine"))
+                    addEntry(jar, entry.getName(), readAll(runtime.getInputStream(entry)));
+            }
+            runtime.close();
+        }
+    }
+
+    /**
+     * Writes the JAR file for the program in code store.
+     *
+     * @return the number of routines translated.
+     */
+    private static int writeJar() throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "TAM.CompiledProgram");
+
+        int translated = 0;
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(jarName), manifest);
+        addRuntime(jar);
+        addEntry(jar, "TAM/" + CompiledProgram.programResource, readAll(new FileInputStream(objectName)));
+        for (int addr = TamVM.CB; addr < vm.CT; addr++)
+            if (vm.verifier.frameDepth[addr] >= 0) {
+                byte[] bytes = new Translator(vm).translate(addr, "TAM/Routine" + addr);
+                if (bytes == null)
+                    System.out.println("Routine " + addr + " cannot be translated; it will be interpreted.");
+                else {
+                    addEntry(jar, "TAM/Routine" + addr + ".class", bytes);
+                    translated++;
+                }
+            }
+        jar.close();
+        return translated;
+    }
+
+
+// COMPILE
+
+    public static void main(String[] args) {
+        System.out.println("********** TAM Class Compiler (Java Version 2.0) **********");
+
+        objectName = (args.length >= 1) ? args[0] : "obj.tam";
+        if (args.length >= 2)
+            jarName = args[1];
+        else if (objectName.endsWith(".tam"))
+            jarName = objectName.substring(0, objectName.length() - 4) + ".jar";
+        else
+            jarName = objectName + ".jar";
+
+        vm = new TamVM();
+        vm.loadObjectProgram(objectName);
+        if (vm.CT == TamVM.CB)
+            System.exit(1);
+        if (!vm.verify()) {
+            System.out.println("Program rejected: " + vm.verifier.error);
+            System.exit(1);
+        }
+        try {
+            int translated = writeJar();
+            System.out.println(translated + " routines compiled into " + jarName + ".");
+        } catch (IOException s) {
+            System.err.println("Error writing " + jarName + ": " + s);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package TAM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds a Java class file for code translated from TAM routines.
+ * <p>
+ * Only the parts of the class file format that the translator needs are
+ * supported: a constant pool of strings, classes, fields, methods and
+ * integers, and methods with a Code attribute. Class files are written
+ * with version 49.0, which the JVM verifies by type inference, so no
+ * StackMapTable has to be computed.
+ */
+
+final class ClassFile {
+
+    // JVM opcodes
+    final static int
+            ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC_W = 19,
+            ILOAD = 21, LLOAD = 22, ALOAD = 25, ISTORE = 54, LSTORE = 55, ASTORE = 58,
+            IALOAD = 46, IASTORE = 79, AASTORE = 83, POP = 87, DUP = 89, DUP2 = 92,
+            IADD = 96, LADD = 97, ISUB = 100, LSUB = 101, IMUL = 104, LMUL = 105,
+            IDIV = 108, IREM = 112, INEG = 116, IINC = 132, I2L = 133, L2I = 136,
+            IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+            IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162,
+            IF_ICMPGT = 163, IF_ICMPLE = 164, GOTO = 167, TABLESWITCH = 170,
+            IRETURN = 172, ARETURN = 176, RETURN = 177, GETSTATIC = 178, PUTSTATIC = 179,
+            GETFIELD = 180, PUTFIELD = 181, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183,
+            INVOKESTATIC = 184, NEW = 187, NEWARRAY = 188, ANEWARRAY = 189, WIDE = 196;
+
+    // access flags
+    final static int
+            ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010,
+            ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    private final String thisName, superName;
+    private final ArrayList<byte[]> fields = new ArrayList<byte[]>();
+    private final ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+    /**
+     * Starts a public class with the given internal names.
+     *
+     * @param thisName  the name of the class, such as "TAM/Routine".
+     * @param superName the name of its superclass.
+     */
+    ClassFile(String thisName, String superName) {
+        this.thisName = thisName;
+        this.superName = superName;
+    }
+
+    private int constant(String key, int tag, int a, int b, String s) {
+        Integer index = poolIndex.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(tag);
+            if (s != null)
+                pool.writeUTF(s);
+            else if (tag == 3)
+                pool.writeInt(a);
+            else if (b < 0)
+                pool.writeShort(a);
+            else {
+                pool.writeShort(a);
+                pool.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, 1, 0, -1, s);
+    }
+
+    int integer(int i) {
+        return constant("I" + i, 3, i, 0, null);
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, 7, utf8(name), -1, null);
+    }
+
+    private int nameAndType(String name, String desc) {
+        return constant("N" + name + ";" + desc, 12, utf8(name), utf8(desc), null);
+    }
+
+    int fieldRef(String owner, String name, String desc) {
+        return constant("F" + owner + "." + name + ";" + desc, 9,
+                classRef(owner), nameAndType(name, desc), null);
+    }
+
+    int methodRef(String owner, String name, String desc) {
+        return constant("M" + owner + "." + name + ";" + desc, 10,
+                classRef(owner), nameAndType(name, desc), null);
+    }
+
+    /**
+     * Adds a field with the given access flags, name and descriptor.
+     */
+    void addField(int access, String name, String desc) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(desc));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    /**
+     * Starts a method with the given access flags, name and descriptor.
+     * Its code is added to the class by Code.finish.
+     */
+    Code method(int access, String name, String desc, int maxLocals) {
+        return new Code(access, name, desc, maxLocals);
+    }
+
+    /**
+     * Returns the bytes of the class file.
+     */
+    byte[] toByteArray() {
+        int thisIndex = classRef(thisName), superIndex = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(0);          // no interfaces
+            out.writeShort(fields.size());
+            for (byte[] f : fields)
+                out.write(f);
+            out.writeShort(methods.size());
+            for (byte[] m : methods)
+                out.write(m);
+            out.writeShort(0);          // no attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * The bytecode of one method. Branches refer to labels, which are
+     * resolved when the method is finished.
+     */
+    final class Code {
+
+        private final int access, nameIndex, descIndex, maxLocals;
+        private byte[] buf = new byte[256];
+        private int length = 0;
+
+        private int[] labels = new int[16];
+        private int labelCount = 0;
+
+        // branch fixups: position of the branch opcode, position of the
+        // offset, label, and whether the offset is four bytes wide
+        private final ArrayList<int[]> fixups = new ArrayList<int[]>();
+
+        private Code(int access, String name, String desc, int maxLocals) {
+            this.access = access;
+            this.nameIndex = utf8(name);
+            this.descIndex = utf8(desc);
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * Returns the number of bytes of code emitted so far.
+         */
+        int length() {
+            return length;
+        }
+
+        private void put(int b) {
+            if (length == buf.length) {
+                byte[] bigger = new byte[2 * buf.length];
+                System.arraycopy(buf, 0, bigger, 0, length);
+                buf = bigger;
+            }
+            buf[length++] = (byte) b;
+        }
+
+        private void put2(int s) {
+            put(s >> 8);
+            put(s);
+        }
+
+        private void put4(int i) {
+            put2(i >> 16);
+            put2(i);
+        }
+
+        void op(int opcode) {
+            put(opcode);
+        }
+
+        void op(int opcode, int operand) {
+            put(opcode);
+            put(operand);
+        }
+
+        /**
+         * Emits an instruction that refers to the constant pool.
+         */
+        void ref(int opcode, int index) {
+            put(opcode);
+            put2(index);
+        }
+
+        void iconst(int value) {
+            if ((value >= -1) && (value <= 5))
+                put(ICONST_0 + value);
+            else if ((value >= Byte.MIN_VALUE) && (value <= Byte.MAX_VALUE)) {
+                put(BIPUSH);
+                put(value);
+            } else if ((value >= Short.MIN_VALUE) && (value <= Short.MAX_VALUE)) {
+                put(SIPUSH);
+                put2(value);
+            } else
+                ref(LDC_W, integer(value));
+        }
+
+        void load(int opcode, int local) {
+            if (local > 255) {
+                put(WIDE);
+                put(opcode);
+                put2(local);
+            } else {
+                put(opcode);
+                put(local);
+            }
+        }
+
+        void iinc(int local, int increment) {
+            if ((local > 255) || (increment < Byte.MIN_VALUE) || (increment > Byte.MAX_VALUE)) {
+                put(WIDE);
+                put(IINC);
+                put2(local);
+                put2(increment);
+            } else {
+                put(IINC);
+                put(local);
+                put(increment);
+            }
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                int[] bigger = new int[2 * labels.length];
+                System.arraycopy(labels, 0, bigger, 0, labelCount);
+                labels = bigger;
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void mark(int label) {
+            labels[label] = length;
+        }
+
+        /**
+         * Emits a branch instruction to the given label.
+         */
+        void jump(int opcode, int label) {
+            fixups.add(new int[]{length, length + 1, label, 0});
+            put(opcode);
+            put2(0);
+        }
+
+        /**
+         * Emits a tableswitch over the values low .. high, branching to
+         * targets[value - low], or to dflt for any other value.
+         */
+        void tableswitch(int low, int high, int[] targets, int dflt) {
+            int at = length;
+            put(TABLESWITCH);
+            while (length % 4 != 0)
+                put(0);
+            fixups.add(new int[]{at, length, dflt, 1});
+            put4(0);
+            put4(low);
+            put4(high);
+            for (int i = 0; i <= high - low; i++) {
+                fixups.add(new int[]{at, length, targets[i], 1});
+                put4(0);
+            }
+        }
+
+        /**
+         * Resolves the branches and adds the method to the class.
+         *
+         * @return false iff the code is too large for a method.
+         */
+        boolean finish(int maxStack) {
+            if (length > Short.MAX_VALUE)
+                return false;
+            for (int[] f : fixups) {
+                int offset = labels[f[2]] - f[0];
+                if (f[3] == 0) {
+                    buf[f[1]] = (byte) (offset >> 8);
+                    buf[f[1] + 1] = (byte) offset;
+                } else {
+                    buf[f[1]] = (byte) (offset >> 24);
+                    buf[f[1] + 1] = (byte) (offset >> 16);
+                    buf[f[1] + 2] = (byte) (offset >> 8);
+                    buf[f[1] + 3] = (byte) offset;
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeShort(access);
+                out.writeShort(nameIndex);
+                out.writeShort(descIndex);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(length);
+                out.write(buf, 0, length);
+                out.writeShort(0);      // no exception table
+                out.writeShort(0);      // no attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methods.add(bytes.toByteArray());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs a TAM program packaged by ClassCompiler.
+ * <p>
+ * The object program is read from the resource TAM/program.tam, and the
+ * compiled code of each routine from the class TAM.Routine<i>n</i>, where
+ * <i>n</i> is the routine's code address. Routines without a class are
+ * interpreted. The program's output and its final status are the same as
+ * under the interpreter, and the exit status is 0 if the program halted
+ * normally and the interpreter's failure status otherwise.
+ * <p>
+ * For example:
+ * <pre>
+ *   java -jar obj.jar
+ *   java -jar obj.jar -memory 32768 -gc
+ * </pre>
+ */
+
+public class CompiledProgram {
+
+    final static String programResource = "program.tam";
+
+    public static void main(String[] args) {
+        TamVM vm;
+        int dataStoreSize = TamVM.defaultDataStoreSize;
+        boolean collecting = false;
+        try {
+            for (int i = 0; i < args.length; i++)
+                if (args[i].equals("-memory") && (i + 1 < args.length))
+                    dataStoreSize = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-gc"))
+                    collecting = true;
+            vm = new TamVM(System.in, System.out, dataStoreSize);
+        } catch (IllegalArgumentException s) {
+            System.err.println("Invalid -memory option: " + s.getMessage());
+            System.exit(1);
+            return;
+        }
+        vm.collecting = collecting;
+        InputStream objectFile = CompiledProgram.class.getResourceAsStream(programResource);
+        if (objectFile == null) {
+            System.err.println("Error opening object program: no resource TAM/" + programResource);
+            System.exit(1);
+        }
+        try {
+            vm.readObjectProgram(objectFile);
+            objectFile.close();
+        } catch (IOException s) {
+            System.err.println("Error reading object program: " + s);
+            System.exit(1);
+        }
+        if (!vm.verify()) {
+            System.err.println("Object program rejected: " + vm.verifier.error);
+            System.exit(1);
+        }
+
+        vm.jit.precompiled = true;
+        vm.jit.enabled = false;
+        vm.run();
+        vm.showStatus();
+        System.exit(vm.exitStatus());
+    }
+}
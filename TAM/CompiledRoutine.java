@@ -0,0 +1,82 @@
+package TAM;
+
+/**
+ * The superclass of the classes the Translator generates from TAM
+ * routines, and the home of the small helper methods their code calls.
+ * <p>
+ * A compiled routine works directly on the data store and registers of
+ * the machine that runs it, and leaves the data store laid out exactly as
+ * the interpreter would, so that frames built by compiled code and frames
+ * built by the interpreter can be mixed freely and dump() still works
+ * after a failure.
+ */
+
+public abstract class CompiledRoutine {
+
+    /**
+     * Runs the compiled code from the given code address until it reaches
+     * an instruction that it leaves to the interpreter (CALL, CALLI, RETURN,
+     * JUMPI or HALT), or until the program fails. On return vm.ST, vm.HT
+     * and vm.status hold the new values of those registers, and the
+     * instructions executed have been added to vm.instructionCount.
+     *
+     * @param vm the machine running the program.
+     * @param cp the code address at which to start.
+     * @param st the value of ST.
+     * @param lb the value of LB.
+     * @return the address of the next instruction to execute, or of the
+     * instruction that failed.
+     */
+    public abstract int run(TamVM vm, int cp, int st, int lb);
+
+
+// HELPERS FOR COMPILED CODE
+
+    static void copy(int[] data, int from, int to, int n) {
+        // Copies n words from one address to another, exactly as the
+        // interpreter does.
+        TamVM.copy(data, from, to, n);
+    }
+
+    static void cover(TamVM vm, int addr, int length) {
+        // Marks a basic block that had not been covered when the routine
+        // was compiled.
+        vm.coverage.mark(addr, length);
+    }
+
+    static boolean overflows(long datum) {
+        return (datum < -Machine.maxintRep) || (datum > Machine.maxintRep);
+    }
+
+    static boolean outOfRange(int lower, int value, int upper) {
+        return !(lower <= value && value < upper);
+    }
+
+    static int not(int a) {
+        return TamVM.toInt(!TamVM.isTrue(a));
+    }
+
+    static int and(int a, int b) {
+        return TamVM.toInt(TamVM.isTrue(a) & TamVM.isTrue(b));
+    }
+
+    static int or(int a, int b) {
+        return TamVM.toInt(TamVM.isTrue(a) | TamVM.isTrue(b));
+    }
+
+    static int lt(int a, int b) {
+        return TamVM.toInt(a < b);
+    }
+
+    static int le(int a, int b) {
+        return TamVM.toInt(a <= b);
+    }
+
+    static int ge(int a, int b) {
+        return TamVM.toInt(a >= b);
+    }
+
+    static int gt(int a, int b) {
+        return TamVM.toInt(a > b);
+    }
+}
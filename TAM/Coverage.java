@@ -0,0 +1,284 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The code coverage of one or more runs of a TAM program: a bitmap with a
+ * bit for each code address, set if the instruction there was executed.
+ * <p>
+ * The interpreter records coverage when given -coverage file, and writes
+ * the file when the program stops, however it stops. This command merges
+ * the coverage files of any number of runs of one object program, and
+ * reports it by routine and by source line:
+ * <pre>
+ *   java TAM.Interpreter -coverage run1.cov obj.tam
+ *   java TAM.Coverage [-o all.cov] obj.tam run1.cov run2.cov ...
+ * </pre>
+ * A coverage file is a header of five words: the magic number "TAMC", the
+ * format version, the number of instructions in the program, a checksum of
+ * them, and the number of runs merged into the file. The bitmap follows,
+ * as 64-bit words, the bit for code address a being bit a % 64 of word
+ * a / 64. Files are merged only if they are of the same program.
+ */
+
+public class Coverage {
+
+    public final static int
+            magic = 0x54414D43,     // "TAMC"
+            version = 1;
+
+    final int codeSize, checksum;
+    int runs = 1;
+    final long[] bits;
+
+    Coverage(int codeSize, int checksum) {
+        this.codeSize = codeSize;
+        this.checksum = checksum;
+        bits = new long[(codeSize + 63) >>> 6];
+    }
+
+    /**
+     * Returns the checksum of the instructions CB .. CB + codeSize - 1 of
+     * the given code store, which tells one program from another.
+     */
+    static int checksum(Instruction[] code, int codeSize) {
+        CRC32 crc = new CRC32();
+        ByteBuffer word = ByteBuffer.allocate(4);
+        for (int addr = Machine.CB; addr < Machine.CB + codeSize; addr++) {
+            word.clear();
+            crc.update(word.putInt(code[addr].pack()).array());
+        }
+        return (int) crc.getValue();
+    }
+
+
+// MARKING
+
+    /**
+     * Marks the given number of instructions from addr as executed.
+     */
+    void mark(int addr, int length) {
+        for (int a = addr - Machine.CB; a < addr - Machine.CB + length; a++)
+            if ((a >= 0) && (a < codeSize))
+                bits[a >>> 6] |= 1L << a;
+    }
+
+    boolean covered(int addr) {
+        int a = addr - Machine.CB;
+        return (a >= 0) && (a < codeSize) && ((bits[a >>> 6] & (1L << a)) != 0);
+    }
+
+    /**
+     * Tests whether all of the given number of instructions from addr have
+     * been executed.
+     */
+    boolean covered(int addr, int length) {
+        for (int a = addr; a < addr + length; a++)
+            if (!covered(a))
+                return false;
+        return true;
+    }
+
+    int count() {
+        int count = 0;
+        for (long word : bits)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * Adds the coverage of the runs in other to this.
+     *
+     * @throws IOException if other is the coverage of another program.
+     */
+    void merge(Coverage other) throws IOException {
+        if ((other.codeSize != codeSize) || (other.checksum != checksum))
+            throw new IOException("coverage of a different program");
+        for (int i = 0; i < bits.length; i++)
+            bits[i] |= other.bits[i];
+        runs += other.runs;
+    }
+
+
+// READING AND WRITING
+
+    static Coverage load(String fileName) throws IOException {
+        FileChannel file = FileChannel.open(Paths.get(fileName));
+        try {
+            long size = file.size();
+            if (size > 20 + 8L * ((Machine.PB + 63) >>> 6))
+                throw new IOException("invalid coverage file size " + size);
+            ByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if ((buffer.getInt() != magic) || (buffer.getInt() != version))
+                throw new IOException("not a TAM coverage file");
+            int codeSize = buffer.getInt();
+            if ((codeSize < 0) || (codeSize > Machine.PB - Machine.CB))
+                throw new IOException("invalid code size " + codeSize);
+            Coverage coverage = new Coverage(codeSize, buffer.getInt());
+            coverage.runs = buffer.getInt();
+            buffer.asLongBuffer().get(coverage.bits);
+            return coverage;
+        } catch (BufferUnderflowException s) {
+            throw new IOException("coverage file is truncated");
+        } finally {
+            file.close();
+        }
+    }
+
+    void save(String fileName) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20 + 8 * bits.length);
+        buffer.putInt(magic).putInt(version).putInt(codeSize).putInt(checksum).putInt(runs);
+        for (long word : bits)
+            buffer.putLong(word);
+        buffer.flip();
+        FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining())
+                file.write(buffer);
+        } finally {
+            file.close();
+        }
+    }
+
+
+// REPORTING
+
+    private static String percent(int part, int whole) {
+        return String.format("%5.1f%%", 100.0 * part / Math.max(whole, 1));
+    }
+
+    /**
+     * Writes the coverage of each routine, and the source lines of the
+     * program, or failing that the code addresses, not fully covered.
+     */
+    void show(PrintStream out, DebugInfo debugInfo) {
+        int covered = count();
+        out.println(covered + " of " + codeSize + " instructions covered (" + percent(covered, codeSize).trim()
+                + ") in " + runs + ((runs == 1) ? " run." : " runs."));
+        if (debugInfo == null) {
+            out.println("");
+            out.println("Instructions not covered (the program has no debug table):");
+            for (int addr = Machine.CB; addr < Machine.CB + codeSize; addr++)
+                if (!covered(addr)) {
+                    int end = addr;
+                    while ((end + 1 < Machine.CB + codeSize) && !covered(end + 1))
+                        end++;
+                    out.println((end == addr) ? "  address " + addr : "  addresses " + addr + " .. " + end);
+                    addr = end;
+                }
+            return;
+        }
+
+        // Tally the instructions of each routine and of each line ...
+        ArrayList<String> routines = new ArrayList<String>();
+        TreeMap<String, int[]> byRoutine = new TreeMap<String, int[]>();
+        TreeMap<Integer, int[]> byLine = new TreeMap<Integer, int[]>();
+        for (int addr = Machine.CB; addr < Machine.CB + codeSize; addr++) {
+            String routine = debugInfo.routine(addr);
+            if (!byRoutine.containsKey(routine)) {
+                routines.add(routine);
+                byRoutine.put(routine, new int[2]);
+            }
+            int hit = covered(addr) ? 1 : 0;
+            byRoutine.get(routine)[0] += hit;
+            byRoutine.get(routine)[1]++;
+            int line = debugInfo.line(addr);
+            if (line > 0) {
+                byLine.computeIfAbsent(line, l -> new int[2]);
+                byLine.get(line)[0] += hit;
+                byLine.get(line)[1]++;
+            }
+        }
+
+        out.println("");
+        out.println("Routines:");
+        out.println("     covered  instructions       %  routine");
+        for (String routine : routines) {
+            int[] tally = byRoutine.get(routine);
+            out.println(String.format("%12d %13d  %s  %s", tally[0], tally[1], percent(tally[0], tally[1]), routine));
+        }
+
+        int linesCovered = 0;
+        for (int[] tally : byLine.values())
+            if (tally[0] == tally[1])
+                linesCovered++;
+        out.println("");
+        out.println(linesCovered + " of " + byLine.size() + " source lines fully covered.");
+        if (linesCovered < byLine.size()) {
+            out.println("Lines not fully covered:");
+            for (Integer line : byLine.keySet()) {
+                int[] tally = byLine.get(line);
+                if (tally[0] < tally[1]) {
+                    int addr = Machine.CB;
+                    while (debugInfo.line(addr) != line)
+                        addr++;
+                    out.println(String.format("  line %5d  %d of %d instructions  (%s)",
+                            line, tally[0], tally[1], debugInfo.routine(addr)));
+                }
+            }
+        }
+    }
+
+
+// MERGING
+
+    public static void main(String[] args) {
+        System.out.println("********** TAM Coverage (Java Version 2.0) **********");
+
+        String outputName = null, objectName = null;
+        ArrayList<String> inputNames = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && (i + 1 < args.length))
+                outputName = args[++i];     // the merged coverage
+            else if (objectName == null)
+                objectName = args[i];
+            else
+                inputNames.add(args[i]);
+        }
+        if (inputNames.isEmpty()) {
+            System.err.println("Usage: java TAM.Coverage [-o merged.cov] obj.tam run.cov ...");
+            System.exit(1);
+        }
+
+        Instruction[] code = new Instruction[Machine.PB];
+        ObjectFile program;
+        DebugInfo debugInfo;
+        try {
+            program = ObjectFile.load(objectName, code);
+            debugInfo = (program.debugInfo == null) ? null : DebugInfo.fromBytes(program.debugInfo);
+        } catch (IOException s) {
+            System.err.println("Error reading object file: " + s);
+            System.exit(1);
+            return;
+        }
+        Coverage merged = new Coverage(program.codeSize, checksum(code, program.codeSize));
+        merged.runs = 0;
+        for (String inputName : inputNames) {
+            try {
+                merged.merge(load(inputName));
+            } catch (IOException s) {
+                System.err.println("Error reading " + inputName + ": " + s.getMessage());
+                System.exit(1);
+            }
+        }
+        if (outputName != null) {
+            try {
+                merged.save(outputName);
+            } catch (IOException s) {
+                System.err.println("Error writing " + outputName + ": " + s);
+                System.exit(1);
+            }
+        }
+        merged.show(System.out, debugInfo);
+    }
+}
@@ -0,0 +1,152 @@
+package TAM;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The debug table of an object program: for each code address, the line
+ * of the source program it was generated from and the routine it belongs
+ * to, so that addresses can be reported in terms of the source.
+ * <p>
+ * The table holds an entry only where the line or the routine changes, in
+ * order of address; an address belongs to the last entry at or below it.
+ * Routine 0 is the main program. In an object file it is a list of the
+ * routine names, then a list of the entries, each an address, a line and
+ * a routine number (see ObjectFile).
+ */
+
+public class DebugInfo {
+
+    private final ArrayList<String> names = new ArrayList<String>();
+    private int[] addresses = new int[16], lines = new int[16], routines = new int[16];
+    private int count = 0;
+
+    public DebugInfo() {
+        names.add("the main program");
+    }
+
+
+// BUILDING
+
+    /**
+     * Adds a routine with the given name, and returns its number.
+     */
+    public int addRoutine(String name) {
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /**
+     * Records that the code from the given address on, which must be no
+     * lower than that of any earlier call, was generated from the given
+     * line and belongs to the given routine.
+     */
+    public void note(int addr, int line, int routine) {
+        if ((count > 0) && (addresses[count - 1] == addr))
+            count--;            // nothing was generated for the last entry
+        if ((count > 0) && (lines[count - 1] == line) && (routines[count - 1] == routine))
+            return;
+        if (count == addresses.length) {
+            addresses = Arrays.copyOf(addresses, 2 * count);
+            lines = Arrays.copyOf(lines, 2 * count);
+            routines = Arrays.copyOf(routines, 2 * count);
+        }
+        addresses[count] = addr;
+        lines[count] = line;
+        routines[count] = routine;
+        count++;
+    }
+
+
+// LOOKING UP
+
+    private int entry(int addr) {
+        // Returns the index of the entry the given address belongs to, or
+        // -1 if there is none.
+        int i = Arrays.binarySearch(addresses, 0, count, addr);
+        return (i >= 0) ? i : -i - 2;
+    }
+
+    /**
+     * Returns the source line the given code address was generated from,
+     * or 0 if it is not known.
+     */
+    public int line(int addr) {
+        int i = entry(addr);
+        return (i < 0) ? 0 : lines[i];
+    }
+
+    /**
+     * Returns the name of the routine the given code address belongs to.
+     */
+    public String routine(int addr) {
+        int i = entry(addr);
+        return names.get((i < 0) ? 0 : routines[i]);
+    }
+
+    /**
+     * Describes the source of the given code address, as "line 12 of proc p".
+     */
+    public String describe(int addr) {
+        int line = line(addr);
+        return (line == 0) ? routine(addr) : "line " + line + " of " + routine(addr);
+    }
+
+
+// READING AND WRITING
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            output.writeInt(names.size());
+            for (String name : names)
+                output.writeUTF(name);
+            output.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                output.writeInt(addresses[i]);
+                output.writeInt(lines[i]);
+                output.writeInt(routines[i]);
+            }
+        } catch (IOException s) {
+            throw new IllegalStateException(s);     // a ByteArrayOutputStream does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a debug table from the contents of an object file's debug
+     * section.
+     */
+    public static DebugInfo fromBytes(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        DebugInfo info = new DebugInfo();
+        int nameCount = input.readInt();
+        if ((nameCount < 1) || (nameCount > bytes.length / 2))
+            throw new IOException("invalid routine count " + nameCount);
+        info.names.clear();
+        for (int i = 0; i < nameCount; i++)
+            info.names.add(input.readUTF());
+        int entryCount = input.readInt();
+        if ((entryCount < 0) || (entryCount > input.available() / 12))
+            throw new IOException("invalid debug entry count " + entryCount);
+        info.addresses = new int[entryCount];
+        info.lines = new int[entryCount];
+        info.routines = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            info.addresses[i] = input.readInt();
+            info.lines[i] = input.readInt();
+            info.routines[i] = input.readInt();
+            if (((i > 0) && (info.addresses[i] <= info.addresses[i - 1]))
+                    || (info.routines[i] < 0) || (info.routines[i] >= nameCount))
+                throw new IOException("invalid debug entry " + i);
+        }
+        info.count = entryCount;
+        return info;
+    }
+}
@@ -14,9 +14,6 @@
 
 package TAM;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 
 /**
@@ -40,6 +37,19 @@ public class Disassembler {
 
     static int CT;
 
+    // the constant segment, and the displacements of the words in it that
+    // hold addresses
+    static int[] constants = new int[0], relocations = new int[0];
+
+    // the source lines and routines of the program, or null if it has no
+    // debug table
+    static DebugInfo debugInfo;
+
+    // the names of the operation codes, indexed by op
+    final static String[] opNames = {
+            "LOAD", "LOADA", "LOADI", "LOADL", "STORE", "STOREI", "CALL", "CALLI",
+            "RETURN", null, "PUSH", "POP", "JUMP", "JUMPI", "JUMPIF", "HALT"};
+
     /**
      * Writes the r-field of an instruction in the form "l<I>reg</I>r", where
      * l and r are the bracket characters to use.
@@ -136,105 +146,103 @@ public class Disassembler {
     }
 
     /**
-     * Writes the name of primitive routine with relative address d.
+     * Returns the name of the primitive routine with relative address d, or
+     * null if it has none.
      *
      * @param d the displacment of the primitive routine.
      */
-    private static void writePrimitive(int d) {
+    static String primitiveName(int d) {
         switch (d) {
             case Machine.idDisplacement:
-                System.out.print("id      ");
-                break;
+                return "id";
             case Machine.notDisplacement:
-                System.out.print("not     ");
-                break;
+                return "not";
             case Machine.andDisplacement:
-                System.out.print("and     ");
-                break;
+                return "and";
             case Machine.orDisplacement:
-                System.out.print("or      ");
-                break;
+                return "or";
             case Machine.succDisplacement:
-                System.out.print("succ    ");
-                break;
+                return "succ";
             case Machine.predDisplacement:
-                System.out.print("pred    ");
-                break;
+                return "pred";
             case Machine.negDisplacement:
-                System.out.print("neg     ");
-                break;
+                return "neg";
             case Machine.addDisplacement:
-                System.out.print("add     ");
-                break;
+                return "add";
             case Machine.subDisplacement:
-                System.out.print("sub     ");
-                break;
+                return "sub";
             case Machine.multDisplacement:
-                System.out.print("mult    ");
-                break;
+                return "mult";
             case Machine.divDisplacement:
-                System.out.print("div     ");
-                break;
+                return "div";
             case Machine.modDisplacement:
-                System.out.print("mod     ");
-                break;
+                return "mod";
             case Machine.ltDisplacement:
-                System.out.print("lt      ");
-                break;
+                return "lt";
             case Machine.leDisplacement:
-                System.out.print("le      ");
-                break;
+                return "le";
             case Machine.geDisplacement:
-                System.out.print("ge      ");
-                break;
+                return "ge";
             case Machine.gtDisplacement:
-                System.out.print("gt      ");
-                break;
+                return "gt";
             case Machine.eqDisplacement:
-                System.out.print("eq      ");
-                break;
+                return "eq";
             case Machine.neDisplacement:
-                System.out.print("ne      ");
-                break;
+                return "ne";
             case Machine.eolDisplacement:
-                System.out.print("eol     ");
-                break;
+                return "eol";
             case Machine.eofDisplacement:
-                System.out.print("eof     ");
-                break;
+                return "eof";
             case Machine.getDisplacement:
-                System.out.print("get     ");
-                break;
+                return "get";
             case Machine.putDisplacement:
-                System.out.print("put     ");
-                break;
+                return "put";
             case Machine.geteolDisplacement:
-                System.out.print("geteol  ");
-                break;
+                return "geteol";
             case Machine.puteolDisplacement:
-                System.out.print("puteol  ");
-                break;
+                return "puteol";
             case Machine.getintDisplacement:
-                System.out.print("getint  ");
-                break;
+                return "getint";
             case Machine.putintDisplacement:
-                System.out.print("putint  ");
-                break;
+                return "putint";
             case Machine.newDisplacement:
-                System.out.print("new     ");
-                break;
+                return "new";
             case Machine.disposeDisplacement:
-                System.out.print("dispose ");
-                break;
+                return "dispose";
             case Machine.rangecheckDisplacement:
-                System.out.print("rangecheck ");
-                break;
+                return "rangecheck";
             case Machine.fixedLexDisplacement:
-                System.out.print("fixedLex ");
-                break;
+                return "fixedLex";
+            case Machine.dynamicEqDisplacement:
+                return "dynamicEq";
+            case Machine.dynamicNeDisplacement:
+                return "dynamicNe";
+            case Machine.dynamicConcatDisplacement:
+                return "dynamicConcat";
+            case Machine.dynamicLexDisplacement:
+                return "dynamicLex";
+            case Machine.regionBeginDisplacement:
+                return "regionBegin";
+            case Machine.regionEndDisplacement:
+                return "regionEnd";
+            case Machine.checkpointDisplacement:
+                return "checkpoint";
+            default:
+                return null;
         }
     }
 
+    /**
+     * Writes the name of primitive routine with relative address d.
+     *
+     * @param d the displacment of the primitive routine.
+     */
+    private static void writePrimitive(int d) {
+        String name = primitiveName(d);
+        if (name != null)
+            System.out.print((name.length() < 8) ? String.format("%-8s", name) : name + " ");
+    }
+
     /**
      * Writes the given instruction in assembly-code format.
      *
@@ -342,11 +350,30 @@ public class Disassembler {
      * Writes all instructions of the program in code store.
      */
     private static void disassembleProgram() {
+        String source = null;
         for (int addr = Machine.CB; addr < CT; addr++) {
+            if ((debugInfo != null) && !debugInfo.describe(addr).equals(source)) {
+                source = debugInfo.describe(addr);
+                System.out.println("! " + source);
+            }
             System.out.print(addr + ":  ");
             writeInstruction(Machine.code[addr]);
             System.out.println();
         }
+        if (constants.length > 0) {
+            System.out.println();
+            System.out.println("Constants:");
+            for (int i = 0; i < constants.length; i++) {
+                int displacement = i - constants.length;
+                System.out.print(displacement + "[HB]:  " + constants[i]);
+                for (int relocation : relocations)
+                    if (relocation == displacement)
+                        System.out.print("[HB]");
+                if ((constants[i] >= 32) && (constants[i] < 127))
+                    System.out.print("  '" + (char) constants[i] + "'");
+                System.out.println();
+            }
+        }
     }
 
 
@@ -358,30 +385,13 @@ public class Disassembler {
      * @param objectName the name of the file containing the program.
      */
     static void loadObjectProgram(String objectName) {
-
-        FileInputStream objectFile = null;
-        DataInputStream objectStream = null;
-
-        int addr;
-        boolean finished = false;
-
         try {
-            objectFile = new FileInputStream(objectName);
-            objectStream = new DataInputStream(objectFile);
-
-            addr = Machine.CB;
-            while (!finished) {
-                Machine.code[addr] = Instruction.read(objectStream);
-                if (Machine.code[addr] == null)
-                    finished = true;
-                else
-                    addr = addr + 1;
-            }
-            CT = addr;
-            objectFile.close();
-        } catch (FileNotFoundException s) {
-            CT = Machine.CB;
-            System.err.println("Error opening object file: " + s);
+            ObjectFile program = ObjectFile.load(objectName, Machine.code);
+            CT = Machine.CB + program.codeSize;
+            constants = program.constants;
+            relocations = program.relocations;
+            if (program.debugInfo != null)
+                debugInfo = DebugInfo.fromBytes(program.debugInfo);
         } catch (IOException s) {
             CT = Machine.CB;
             System.err.println("Error reading object file: " + s);
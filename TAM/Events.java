@@ -0,0 +1,119 @@
+package TAM;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of TAM machines. They are recorded by any
+ * flight recording that enables them, for example one started with
+ * <pre>
+ *   java -XX:StartFlightRecording:filename=tam.jfr TAM.Interpreter obj.tam
+ * </pre>
+ * and cost next to nothing when no recording is running. None is committed
+ * inside the dispatch loop: a load and a run are timed as a whole, and the
+ * waits are those of the buffered input and output, which block only when
+ * a buffer has to be filled or emptied (see ProgramIO).
+ */
+
+final class Events {
+
+    private Events() {
+    }
+
+    @Name("TAM.ProgramLoad")
+    @Label("Program Load")
+    @Category("TAM")
+    @Description("An object program read into a machine's code store")
+    @StackTrace(false)
+    static final class ProgramLoad extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Instructions")
+        int codeSize;
+
+        @Label("Constants")
+        @Description("Words in the program's constant segment")
+        int constants;
+
+        @Label("Debug Table")
+        boolean debugTable;
+    }
+
+    @Name("TAM.DataStoreFull")
+    @Label("Data Store Full")
+    @Category("TAM")
+    @Description("A program that failed because its stack and heap met")
+    @StackTrace(false)
+    static final class DataStoreFull extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Code Address")
+        int address;
+
+        @Label("Stack Depth")
+        @Description("Words on the stack, ST - SB")
+        int stackDepth;
+
+        @Label("Heap Depth")
+        @Description("Words in the heap and the constants, HB - HT")
+        int heapDepth;
+
+        @Label("Heap In Use")
+        @Description("Words in allocated heap blocks")
+        long heapInUse;
+
+        @Label("Collections")
+        int collections;
+    }
+
+    @Name("TAM.InputWait")
+    @Label("Input Wait")
+    @Category("TAM")
+    @Description("A program waiting for its input buffer to be filled")
+    @StackTrace(false)
+    static final class InputWait extends Event {
+        @Label("Bytes Read")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("TAM.OutputWait")
+    @Label("Output Wait")
+    @Category("TAM")
+    @Description("A program waiting for its output buffer to be written")
+    @StackTrace(false)
+    static final class OutputWait extends Event {
+        @Label("Bytes Written")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("TAM.Run")
+    @Label("Run")
+    @Category("TAM")
+    @Description("A program run by a machine, from its start or restore to its end")
+    @StackTrace(false)
+    static final class Run extends Event {
+        @Label("Program")
+        String program;
+
+        @Label("Status")
+        String status;
+
+        @Label("Instructions")
+        long instructions;
+
+        @Label("Heap Allocations")
+        long allocations;
+
+        @Label("Reference Loop")
+        boolean reference;
+    }
+}
@@ -0,0 +1,494 @@
+package TAM;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Allocates the blocks of a TAM machine's heap, for the new and dispose
+ * primitives and for the dynamic strings built by concatenation.
+ * <p>
+ * The heap grows down from HB, and a new block is taken from below HT
+ * only when no freed block is big enough for it. A disposed block is
+ * merged with any free block on either side of it, and a free block that
+ * reaches down to HT is handed back to the space between the stack and
+ * the heap, so HT rises again. Other free blocks are kept on segregated
+ * free lists: one list for each size below smallSizes, so that the common
+ * small requests are met exactly by taking the head of a list, and one
+ * list, searched first-fit, for everything larger.
+ * <p>
+ * The allocator keeps its bookkeeping outside the data store, so blocks
+ * have no headers and the heap is laid out exactly as before whenever
+ * nothing has been disposed.
+ * <p>
+ * While a region is active (see beginRegion), the address of every block
+ * allocated is logged, and when the region ends every one of those blocks
+ * still allocated is freed at once.
+ * <p>
+ * If the machine is collecting garbage, every block that the program can
+ * no longer reach is freed (see collect) whenever a request for space
+ * would otherwise fail, and also once the heap has grown close to the
+ * stack, so that the blocks still in use when the collector runs do not
+ * leave the stack without room to grow.
+ */
+
+final class Heap {
+
+    final static int
+            smallSizes = 16,    // sizes 1 .. smallSizes-1 have lists of their own
+            none = -1;
+
+    private final TamVM vm;
+
+    // for each address that starts an allocated block, the size of the
+    // block; 0 at every other address
+    private int[] blockSize;
+
+    // for each address that starts a free block, its size (0 elsewhere)
+    // and its neighbours on its free list; and for the last address of
+    // each free block, the address at which the block starts
+    private int[] freeSize, nextFree, previousFree, freeStart;
+
+    // the first block on each free list; freeLists[0] holds the blocks of
+    // smallSizes words and more
+    private final int[] freeLists = new int[smallSizes];
+
+    // words in allocated blocks, now and at most; words and blocks on
+    // the free lists
+    long inUse, peakInUse;
+    int freeWords, freeBlocks;
+
+    // the number of blocks allocated since the machine started or was
+    // restored
+    long allocations;
+
+    // the number of collections, the words they freed, and the number of
+    // words allocated since the last one
+    int collections;
+    long reclaimedWords;
+    private int allocatedSinceCollection;
+
+    // the addresses of the blocks allocated while a region was active, and
+    // for each active region, the number logged when it began
+    private int[] regionLog = new int[64];
+    private int logged;
+    private int[] regionMarks = new int[16];
+    private int regions;
+
+    Heap(TamVM vm) {
+        this.vm = vm;
+        Arrays.fill(freeLists, none);
+    }
+
+    private static int sizeClass(int size) {
+        return (size < smallSizes) ? size : 0;
+    }
+
+    private void addFree(int addr, int size) {
+        int c = sizeClass(size);
+        freeSize[addr] = size;
+        freeStart[addr + size - 1] = addr;
+        previousFree[addr] = none;
+        nextFree[addr] = freeLists[c];
+        if (freeLists[c] != none)
+            previousFree[freeLists[c]] = addr;
+        freeLists[c] = addr;
+        freeWords += size;
+        freeBlocks++;
+    }
+
+    private void removeFree(int addr) {
+        int size = freeSize[addr];
+        if (previousFree[addr] == none)
+            freeLists[sizeClass(size)] = nextFree[addr];
+        else
+            nextFree[previousFree[addr]] = nextFree[addr];
+        if (nextFree[addr] != none)
+            previousFree[nextFree[addr]] = previousFree[addr];
+        freeSize[addr] = 0;
+        freeStart[addr + size - 1] = none;
+        freeWords -= size;
+        freeBlocks--;
+    }
+
+    private int takeFree(int size) {
+        // Returns the address of a free block of the given size, split off
+        // a larger one if need be, or none.
+
+        if (freeBlocks == 0)
+            return none;
+        int addr = none;
+        if (size < smallSizes) {
+            for (int c = size; (c < smallSizes) && (addr == none); c++)
+                addr = freeLists[c];
+        }
+        if (addr == none) {
+            for (int b = freeLists[0]; b != none; b = nextFree[b])
+                if (freeSize[b] >= size) {
+                    addr = b;
+                    break;
+                }
+            if (addr == none)
+                return none;
+        }
+        int found = freeSize[addr];
+        removeFree(addr);
+        if (found > size)
+            addFree(addr + size, found - size);
+        return addr;
+    }
+
+    /**
+     * Allocates a block of the given number of words, and returns its
+     * address. If there is no room, sets the machine's status to
+     * failedDataStoreFull.
+     */
+    int allocate(int size) {
+        if (size < 1) {
+            // as the bump allocator always did; nothing to record
+            vm.checkSpace(size);
+            vm.HT = vm.HT - size;
+            return vm.HT;
+        }
+        if (blockSize == null)
+            blockSize = new int[vm.HB];
+        int addr = takeFree(size);
+        if ((addr == none) && vm.collecting && collectionDue(size) && collect())
+            addr = takeFree(size);
+        if (addr == none) {
+            vm.checkSpace(size);
+            if (vm.status != TamVM.running) {
+                if (vm.allocationProfile != null)
+                    vm.allocationProfile.failed(size);
+                return vm.HT - size;
+            }
+            vm.HT = vm.HT - size;
+            addr = vm.HT;
+        }
+        record(addr, size);
+        return addr;
+    }
+
+    /**
+     * Allocates a block of the given number of words if there is room for
+     * it without collecting garbage, and returns its address, or none.
+     */
+    int allocateIfRoom(int size) {
+        if (blockSize == null)
+            blockSize = new int[vm.HB];
+        int addr = takeFree(size);
+        if (addr == none) {
+            if (vm.HT - Math.max(vm.ST, vm.stackLimit) < size)
+                return none;
+            vm.HT = vm.HT - size;
+            addr = vm.HT;
+        }
+        record(addr, size);
+        return addr;
+    }
+
+    private void record(int addr, int size) {
+        if (regions > 0) {
+            if (logged == regionLog.length)
+                regionLog = Arrays.copyOf(regionLog, 2 * logged);
+            regionLog[logged++] = addr;
+        }
+        blockSize[addr] = size;
+        allocations++;
+        if (vm.allocationProfile != null)
+            vm.allocationProfile.allocated(addr, size);
+        allocatedSinceCollection += size;
+        inUse += size;
+        if (inUse > peakInUse)
+            peakInUse = inUse;
+    }
+
+    /**
+     * Frees the block at the given address. Addresses that do not start an
+     * allocated block, nil among them, are ignored.
+     */
+    void dispose(int addr) {
+        if ((blockSize == null) || (addr < vm.HT) || (addr >= vm.HB) || (blockSize[addr] == 0))
+            return;
+        if (freeSize == null) {
+            freeSize = new int[vm.HB];
+            nextFree = new int[vm.HB];
+            previousFree = new int[vm.HB];
+            freeStart = new int[vm.HB];
+            Arrays.fill(freeStart, none);
+        }
+        int size = blockSize[addr];
+        blockSize[addr] = 0;
+        inUse -= size;
+        if (vm.allocationProfile != null)
+            vm.allocationProfile.freed(addr, size);
+
+        // merge with the free blocks above and below ...
+        int above = addr + size;
+        if ((above < vm.HB) && (freeSize[above] > 0)) {
+            size = size + freeSize[above];
+            removeFree(above);
+        }
+        if ((addr > vm.HT) && (freeStart[addr - 1] != none)) {
+            int below = freeStart[addr - 1];
+            size = size + freeSize[below];
+            removeFree(below);
+            addr = below;
+        }
+        // ... and give the result back to the stack if it lies at HT
+        if (addr == vm.HT)
+            vm.HT = vm.HT + size;
+        else
+            addFree(addr, size);
+    }
+
+
+// REGIONS
+
+    // Implementation notes:
+    // The compiler brackets a let command or procedure body with calls of
+    // the regionBegin and regionEnd primitives when it can show that no
+    // pointer stored while it runs can outlive it, so every block allocated
+    // in the meantime is garbage once it ends. Regions nest, as the scopes
+    // do. A block disposed of within a region may be reused, and logged
+    // again; freeing it twice is harmless, as dispose ignores addresses
+    // that do not start an allocated block.
+
+    void beginRegion() {
+        if (regions == regionMarks.length)
+            regionMarks = Arrays.copyOf(regionMarks, 2 * regions);
+        regionMarks[regions++] = logged;
+    }
+
+    void endRegion() {
+        if (regions == 0)
+            return;
+        int mark = regionMarks[--regions];
+        for (int i = logged - 1; i >= mark; i--)
+            dispose(regionLog[i]);
+        logged = mark;
+    }
+
+
+// GARBAGE COLLECTION
+
+    // Implementation notes:
+    // The collector marks and sweeps; it does not move blocks, so no
+    // pointer ever has to be rewritten, and freed blocks go back through
+    // dispose, to the free lists or to HT. The roots are the words of the
+    // stack frames, found by following the dynamic links down from LB;
+    // the link data of each frame (SL, DL and RA) holds stack and code
+    // addresses, and is skipped. The object program says nothing about
+    // which words hold pointers, so every word of a frame or of a reached
+    // block is taken to be one if it holds an address inside an allocated
+    // block. An integer that happens to look like such an address can
+    // only keep a dead block alive, never free a live one; and addresses
+    // of a field inside a block, such as a var parameter, keep the whole
+    // block alive.
+
+    private boolean collectionDue(int size) {
+        // Tests whether to collect before taking size words from below HT:
+        // always if there is no room, and otherwise if the heap would come
+        // within a quarter of the data store of the stack, and a good part
+        // of that quarter has been allocated since the last collection.
+        int room = vm.HT - Math.max(vm.ST, vm.stackLimit);
+        int reserve = (vm.HB - TamVM.SB) / 4;
+        return (room < size)
+                || ((room - size < reserve) && (allocatedSinceCollection >= reserve / 2));
+    }
+
+    /**
+     * Frees every allocated block that cannot be reached from the stack.
+     * The registers ST and LB must be up to date.
+     *
+     * @return true iff any block was freed.
+     */
+    boolean collect() {
+        if ((blockSize == null) || (allocatedSinceCollection == 0))
+            return false;
+        allocatedSinceCollection = 0;
+        collections++;
+
+        int[] data = vm.data;
+        int ht = vm.HT, hb = vm.HB;
+        // for each word of the heap, the block that holds it, or none
+        int[] blockOf = new int[hb - ht];
+        Arrays.fill(blockOf, none);
+        int blocks = 0;
+        for (int addr = ht; addr < hb; addr++)
+            if (blockSize[addr] > 0) {
+                Arrays.fill(blockOf, addr - ht, addr - ht + blockSize[addr], addr);
+                blocks++;
+            }
+        boolean[] marked = new boolean[hb - ht];
+        int[] work = new int[blocks];
+        int pending = 0;
+
+        // Mark the blocks the stack frames point to ...
+        int lb = vm.LB, top = vm.ST;
+        while (true) {
+            int bottom = (lb == TamVM.SB) ? TamVM.SB : lb + Machine.linkDataSize;
+            for (int addr = bottom; addr < top; addr++)
+                pending = mark(data[addr], ht, hb, blockOf, marked, work, pending);
+            if ((lb == TamVM.SB) || (data[lb + 1] >= lb) || (data[lb + 1] < TamVM.SB))
+                break;
+            top = lb;
+            lb = data[lb + 1];          // the dynamic link
+        }
+        // ... and the blocks they point to, in turn
+        while (pending > 0) {
+            int block = work[--pending];
+            for (int addr = block; addr < block + blockSize[block]; addr++)
+                pending = mark(data[addr], ht, hb, blockOf, marked, work, pending);
+        }
+
+        // Sweep: dispose of the blocks not marked.
+        long before = inUse;
+        for (int addr = ht; addr < hb; addr++)
+            if ((blockSize[addr] > 0) && !marked[addr - ht])
+                dispose(addr);
+        reclaimedWords += before - inUse;
+        return inUse < before;
+    }
+
+    private static int mark(int word, int ht, int hb, int[] blockOf, boolean[] marked,
+                            int[] work, int pending) {
+        // Marks the block that holds the address word, if there is one, and
+        // returns the new number of blocks waiting to be scanned.
+        if ((word >= ht) && (word < hb)) {
+            int block = blockOf[word - ht];
+            if ((block != none) && !marked[block - ht]) {
+                marked[block - ht] = true;
+                work[pending++] = block;
+            }
+        }
+        return pending;
+    }
+
+
+
+// SNAPSHOTS
+
+    // Implementation notes:
+    // A snapshot holds the allocated blocks, the free lists in order (so
+    // that a restored machine allocates exactly as the original would
+    // have), the active regions and the statistics. HT and the data
+    // store itself are saved by the machine.
+
+    void save(DataOutputStream out) throws IOException {
+        int blocks = 0;
+        if (blockSize != null)
+            for (int addr = vm.HT; addr < vm.HB; addr++)
+                if (blockSize[addr] > 0)
+                    blocks++;
+        out.writeInt(blocks);
+        if (blockSize != null)
+            for (int addr = vm.HT; addr < vm.HB; addr++)
+                if (blockSize[addr] > 0) {
+                    out.writeInt(addr);
+                    out.writeInt(blockSize[addr]);
+                }
+        for (int c = 0; c < smallSizes; c++) {
+            int count = 0;
+            for (int b = freeLists[c]; b != none; b = nextFree[b])
+                count++;
+            out.writeInt(count);
+            for (int b = freeLists[c]; b != none; b = nextFree[b]) {
+                out.writeInt(b);
+                out.writeInt(freeSize[b]);
+            }
+        }
+        out.writeLong(inUse);
+        out.writeLong(peakInUse);
+        out.writeInt(collections);
+        out.writeLong(reclaimedWords);
+        out.writeInt(allocatedSinceCollection);
+        out.writeInt(logged);
+        for (int i = 0; i < logged; i++)
+            out.writeInt(regionLog[i]);
+        out.writeInt(regions);
+        for (int i = 0; i < regions; i++)
+            out.writeInt(regionMarks[i]);
+    }
+
+    void restore(ByteBuffer in) throws IOException {
+        // Reads the state written by save, checking each address.
+        int blocks = count(in, vm.HB - vm.HT);
+        blockSize = new int[vm.HB];
+        for (int i = 0; i < blocks; i++) {
+            int addr = address(in);
+            blockSize[addr] = size(in, addr);
+        }
+        for (int c = 0; c < smallSizes; c++) {
+            int count = count(in, vm.HB - vm.HT);
+            int[] addrs = new int[count], sizes = new int[count];
+            for (int i = 0; i < count; i++) {
+                addrs[i] = address(in);
+                sizes[i] = size(in, addrs[i]);
+            }
+            if (count > 0) {
+                if (freeSize == null) {
+                    freeSize = new int[vm.HB];
+                    nextFree = new int[vm.HB];
+                    previousFree = new int[vm.HB];
+                    freeStart = new int[vm.HB];
+                    Arrays.fill(freeStart, none);
+                }
+                for (int i = count - 1; i >= 0; i--)      // addFree pushes
+                    addFree(addrs[i], sizes[i]);
+            }
+        }
+        inUse = in.getLong();
+        peakInUse = in.getLong();
+        collections = in.getInt();
+        reclaimedWords = in.getLong();
+        allocatedSinceCollection = in.getInt();
+        logged = count(in, Integer.MAX_VALUE);
+        regionLog = new int[Math.max(logged, 64)];
+        for (int i = 0; i < logged; i++)
+            regionLog[i] = in.getInt();
+        regions = count(in, Integer.MAX_VALUE);
+        regionMarks = new int[Math.max(regions, 16)];
+        for (int i = 0; i < regions; i++)
+            regionMarks[i] = in.getInt();
+    }
+
+    private int address(ByteBuffer in) throws IOException {
+        int addr = in.getInt();
+        if ((addr < vm.HT) || (addr >= vm.HB))
+            throw new IOException("invalid heap address " + addr);
+        return addr;
+    }
+
+    private int size(ByteBuffer in, int addr) throws IOException {
+        int size = in.getInt();
+        if ((size < 1) || (size > vm.HB - addr))
+            throw new IOException("invalid heap block size " + size);
+        return size;
+    }
+
+    private static int count(ByteBuffer in, int limit) throws IOException {
+        int count = in.getInt();
+        if ((count < 0) || (count > limit) || (count > in.remaining() / 4))
+            throw new IOException("invalid count " + count);
+        return count;
+    }
+
+    void showHeap() {
+        // Writes the heap's usage and fragmentation, if the program used it.
+        if (peakInUse == 0)
+            return;
+        int largest = 0;
+        for (int c = 0; c < smallSizes; c++)
+            for (int b = freeLists[c]; b != none; b = nextFree[b])
+                largest = Math.max(largest, freeSize[b]);
+        vm.out.println("Heap: " + inUse + " words in use (peak " + peakInUse + "), "
+                + freeWords + " words free in " + freeBlocks + " blocks"
+                + (freeWords == 0 ? "" : " (largest " + largest + ", fragmentation "
+                + (100 - 100L * largest / freeWords) + "%)") + ".");
+        if (collections > 0)
+            vm.out.println("Garbage collector: " + collections + " collections, "
+                    + reclaimedWords + " words reclaimed.");
+    }
+}
@@ -49,6 +49,27 @@ public class Instruction {
         output.writeInt(d);
     }
 
+    // An instruction is stored in an object file as a single word, with
+    // op, r, n and d packed from the most significant end.
+
+    public boolean fitsWord() {
+        return (0 <= op) && (op <= 15) && (0 <= r) && (r <= 15) && (0 <= n) && (n <= 255)
+                && (Short.MIN_VALUE <= d) && (d <= Short.MAX_VALUE);
+    }
+
+    public int pack() {
+        return (op << 28) | (r << 24) | (n << 16) | (d & 0xFFFF);
+    }
+
+    public static Instruction unpack(int word) {
+        Instruction inst = new Instruction();
+        inst.op = word >>> 28;
+        inst.r = (word >>> 24) & 15;
+        inst.n = (word >>> 16) & 255;
+        inst.d = (short) word;
+        return inst;
+    }
+
     public static Instruction read(DataInputStream input) throws IOException {
         Instruction inst = new Instruction();
         try {
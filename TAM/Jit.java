@@ -0,0 +1,142 @@
+package TAM;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Decides which routines of a verified program are hot, and installs the
+ * classes the Translator generates for them.
+ * <p>
+ * The interpreter counts the calls of each routine and the backward jumps
+ * taken inside it. When a count reaches its threshold the routine is
+ * translated and defined as a hidden class, and each address at which the
+ * compiled code can be entered is rewritten in the decoded code store to
+ * the internal opcode TamVM.compiledop, so that the interpreter
+ * switches to the compiled code the next time it reaches that address.
+ * Routines that cannot be translated go on being interpreted.
+ */
+
+final class Jit {
+
+    final static int
+            invocationThreshold = 1000,
+            backEdgeThreshold = 10000;
+
+    final TamVM vm;
+
+    boolean enabled = true;
+
+    // whether the routines were compiled ahead of time into the classes
+    // TAM.Routine<n> (see ClassCompiler), to be installed before the
+    // program starts
+    boolean precompiled = false;
+
+    /**
+     * For each routine entry, the number of calls of the routine and the
+     * number of backward jumps taken inside it.
+     */
+    int[] invocationCounts, backEdgeCounts;
+
+    /**
+     * For each code address, the compiled routine to run when the
+     * interpreter reaches it, or null.
+     */
+    CompiledRoutine[] compiledAt;
+
+    // routine entries that have been compiled, or could not be
+    private boolean[] compiled, rejected;
+    private int compiledCount, rejectedCount;
+
+    Jit(TamVM vm) {
+        this.vm = vm;
+    }
+
+    void initialize(int ct) {
+        invocationCounts = new int[ct];
+        backEdgeCounts = new int[ct];
+        compiledAt = new CompiledRoutine[ct];
+        compiled = new boolean[ct];
+        rejected = new boolean[ct];
+        compiledCount = 0;
+        rejectedCount = 0;
+        if (precompiled)
+            installPrecompiled();
+    }
+
+    private void installPrecompiled() {
+        // Installs the class of each routine compiled ahead of time; a
+        // routine without one is interpreted.
+        Translator translator = new Translator(vm);
+        for (int addr = TamVM.CB; addr < vm.CT; addr++)
+            if (vm.verifier.frameDepth[addr] >= 0) {
+                try {
+                    Class<?> routineClass = Class.forName("TAM.Routine" + addr);
+                    install(addr, (CompiledRoutine) routineClass.getDeclaredConstructor().newInstance(),
+                            translator.entries(addr));
+                } catch (ClassNotFoundException e) {
+                    // not translated; the routine is interpreted
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    System.err.println("Routine " + addr + " not loaded: " + e);
+                    rejected[addr] = true;
+                    rejectedCount++;
+                }
+            }
+    }
+
+    /**
+     * Compiles the routine with the given entry, unless it has already been
+     * compiled or rejected.
+     */
+    void compile(int entry) {
+        if (!enabled || compiled[entry] || rejected[entry])
+            return;
+        Translator translator = new Translator(vm);
+        byte[] bytes = translator.translate(entry, "TAM/Routine" + entry);
+        if (bytes == null) {
+            rejected[entry] = true;
+            rejectedCount++;
+            return;
+        }
+        try {
+            Class<?> routineClass = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+            install(entry, (CompiledRoutine) routineClass.getDeclaredConstructor().newInstance(),
+                    translator.resumable);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("Routine " + entry + " not compiled: " + e);
+            rejected[entry] = true;
+            rejectedCount++;
+        }
+    }
+
+    /**
+     * Makes the interpreter run the given compiled code for the routine
+     * with the given entry, whenever it reaches one of the given addresses.
+     */
+    void install(int entry, CompiledRoutine routine, int[] resumable) {
+        for (int addr : resumable) {
+            compiledAt[addr] = routine;
+            vm.decodedCode[(addr - TamVM.CB) * TamVM.stride] = TamVM.compiledop;
+        }
+        compiled[entry] = true;
+        compiledCount++;
+    }
+
+    /**
+     * Compiles every routine of the program.
+     */
+    void compileAll() {
+        for (int addr = TamVM.CB; addr < vm.CT; addr++)
+            if (vm.verifier.frameDepth[addr] >= 0)
+                compile(addr);
+    }
+
+    void showJit() {
+        // Writes the routines that were compiled, with their counts.
+        vm.out.println("");
+        vm.out.println("Compiled routines: " + compiledCount + " (" + rejectedCount + " not compilable)");
+        for (int addr = TamVM.CB; addr < vm.CT; addr++)
+            if (compiled[addr] || rejected[addr])
+                vm.out.println(String.format("  routine %5d %14d calls %14d back-edges%s",
+                        addr, invocationCounts[addr], backEdgeCounts[addr],
+                        rejected[addr] ? "  (interpreted)" : ""));
+    }
+}
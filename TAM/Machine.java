@@ -52,6 +52,17 @@ public final class Machine {
             JUMPIFop = 14,
             HALTop = 15;
 
+    // A program's constant segment is loaded at the top of the data store,
+    // so its last word is at HB-1, and is addressed relative to HB. A word
+    // to relocate holds a displacement from HB, to which HB is added when it
+    // is loaded. In the older object format (see ObjectFile), a program is
+    // its instructions, in order, and then, if it has any constants, a
+    // marker instruction with op = constantsOp and d = the number of words
+    // in the constant segment, followed by those words and by the number
+    // and displacements of the words to relocate.
+    public final static int
+            constantsOp = -1;
+
 
 // CODE STORE
 
@@ -138,6 +149,9 @@ public final class Machine {
             dynamicEqDisplacement = 31,
             dynamicNeDisplacement = 32,
             dynamicConcatDisplacement = 33,
-            dynamicLexDisplacement = 34;
+            dynamicLexDisplacement = 34,
+            regionBeginDisplacement = 35,
+            regionEndDisplacement = 36,
+            checkpointDisplacement = 37;
 
 }
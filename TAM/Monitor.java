@@ -0,0 +1,167 @@
+package TAM;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The JMX MBean of a running TAM machine, registered with the platform
+ * MBean server as TAM:type=TamVM,name="program",id=n while the machine
+ * runs, so that JConsole or any other JMX client can watch it.
+ * <p>
+ * The dispatch loop keeps its registers in locals, which no other thread
+ * can read, so the figures are published by the machine's own thread: a
+ * read of any figure sets the machine's pollDue flag, and waits for the
+ * loop to publish them all at the next routine entry or backward jump
+ * (see TamVM.poll). A machine that does not publish within a few
+ * milliseconds is waiting for input, or has stopped, and has written its
+ * registers back, so the reader publishes them itself. Every read thus
+ * sees current figures, and a machine nobody watches does no work for
+ * its monitor. The high-water marks are kept by the machine between
+ * publications, so they count peaks no client saw: the stack's is its
+ * stackPeak and the heap's the heap's peakInUse.
+ */
+
+final class Monitor implements TamVMMXBean {
+
+    private final static AtomicInteger
+            machines = new AtomicInteger();
+
+    private final static String[] statusNames = {
+            "running", "halted", "failed: data store full", "failed: invalid code address",
+            "failed: invalid instruction", "failed: overflow", "failed: division by zero",
+            "failed: IO error", "failed: rangecheck", "checkpointed"
+    };
+
+    private final TamVM vm;
+    private ObjectName name;
+
+    // how long a read waits for the machine to publish
+    private final static long
+            waitNanos = 20000000;
+
+    // written by the machine's thread, or by a reader it did not answer
+    private volatile int status, stackDepth, heapDepth, stackHighWater, heapHighWater;
+    private volatile long instructions, allocations;
+
+    // the number of times the figures have been published
+    private long publications;
+
+    Monitor(TamVM vm) {
+        this.vm = vm;
+    }
+
+    static String statusName(int status) {
+        return ((status >= 0) && (status < statusNames.length)) ? statusNames[status] : "status " + status;
+    }
+
+
+// PUBLISHING
+
+    /**
+     * Publishes the machine's figures, given the registers the dispatch
+     * loop keeps in locals and the number of instructions executed.
+     */
+    void publish(int st, int ht, long instructionCount) {
+        status = vm.status;
+        instructions = instructionCount;
+        stackDepth = st - TamVM.SB;
+        heapDepth = vm.HB - ht;
+        stackHighWater = Math.max(vm.stackPeak, st) - TamVM.SB;
+        heapHighWater = (int) vm.heap.peakInUse;
+        allocations = vm.heap.allocations;
+        synchronized (this) {
+            publications++;
+            notifyAll();
+        }
+    }
+
+    void register() {
+        try {
+            name = new ObjectName("TAM:type=TamVM,name=" + ObjectName.quote(vm.programName)
+                    + ",id=" + machines.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException s) {
+            System.err.println("Error registering monitor: " + s);
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException s) {
+            System.err.println("Error unregistering monitor: " + s);
+        }
+        name = null;
+    }
+
+
+// READING
+
+    private synchronized void read() {
+        // Asks the machine to publish its figures again, and waits until it
+        // has, or publishes the registers it has written back if it does
+        // not answer.
+        long asked = publications, deadline = System.nanoTime() + waitNanos;
+        vm.pollDue = true;
+        try {
+            while (publications == asked) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    publish(vm.ST, vm.HT, vm.instructionCount);
+                    return;
+                }
+                wait(left / 1000000, (int) (left % 1000000));
+            }
+        } catch (InterruptedException s) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public String getProgram() {
+        return vm.programName;
+    }
+
+    public String getStatus() {
+        read();
+        return statusName(status);
+    }
+
+    public long getInstructionsExecuted() {
+        read();
+        return instructions;
+    }
+
+    public int getStackDepth() {
+        read();
+        return stackDepth;
+    }
+
+    public int getHeapDepth() {
+        read();
+        return heapDepth;
+    }
+
+    public int getStackHighWater() {
+        read();
+        return stackHighWater;
+    }
+
+    public int getHeapHighWater() {
+        read();
+        return heapHighWater;
+    }
+
+    public long getAllocations() {
+        read();
+        return allocations;
+    }
+
+    public int getDataStoreSize() {
+        return vm.HB - TamVM.SB;
+    }
+}
@@ -0,0 +1,233 @@
+package TAM;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A TAM object program as it is stored in a file.
+ * <p>
+ * A file starts with a header of six words: the magic number "TAMO", the
+ * format version, the number of instructions, the least data store the
+ * program can run in (its global variables and constants), the address at
+ * which it starts, and the number of sections. The instructions follow,
+ * one word each, packed as op (4 bits), r (4 bits), n (8 bits) and d (16
+ * bits, signed), from the most significant end. Each section is a tag, the
+ * number of bytes in its contents, and its contents, padded with zeros to
+ * a whole number of words; readers skip sections whose tags they do not
+ * know. The constants section holds the number of words in the constant
+ * segment, those words, and the number and displacements of the words to
+ * relocate (see Machine). The debug section holds a DebugInfo table.
+ * <p>
+ * Files in the older format, four words per instruction and no header (see
+ * Machine.constantsOp), can still be read.
+ */
+
+public class ObjectFile {
+
+    public final static int
+            magic = 0x54414D4F,     // "TAMO"
+            version = 1;
+
+    // section tags
+    public final static int
+            constantsSection = 1,
+            debugSection = 2;
+
+    // the largest object file: a full code store in the older format, and a
+    // constant segment filling the data store with a relocation for every
+    // word
+    final static long
+            maxSize = 16L * (Machine.PB - Machine.CB + 1) + 8L * (TamVM.maxDataStoreSize + 1);
+
+    // the program: its instructions are code[CB] .. code[CB + codeSize - 1]
+    public Instruction[] code;
+    public int codeSize;
+    public int dataSize;
+    public int entry = Machine.CB;
+    public int[] constants = new int[0], relocations = new int[0];
+
+    // the contents of the debug section, or null if there is none
+    public byte[] debugInfo;
+
+
+// READING
+
+    /**
+     * Reads the object program in the named file, through a memory-mapped
+     * buffer, putting its instructions into the given code store.
+     */
+    public static ObjectFile load(String objectName, Instruction[] code) throws IOException {
+        FileChannel objectFile = FileChannel.open(Paths.get(objectName));
+        try {
+            long size = objectFile.size();
+            if ((size % 4 != 0) || (size > maxSize))
+                throw new IOException("invalid object file size " + size);
+            return read(objectFile.map(FileChannel.MapMode.READ_ONLY, 0, size), code);
+        } finally {
+            objectFile.close();
+        }
+    }
+
+    /**
+     * Reads an object program from the given buffer, putting its
+     * instructions into the given code store.
+     */
+    public static ObjectFile read(ByteBuffer buffer, Instruction[] code) throws IOException {
+        ObjectFile program = new ObjectFile();
+        program.code = code;
+        try {
+            if (buffer.hasRemaining() && (buffer.getInt(buffer.position()) == magic))
+                program.readSections(buffer);
+            else
+                program.readLegacy(buffer);
+        } catch (BufferUnderflowException s) {
+            throw new IOException("object program is truncated");
+        }
+        return program;
+    }
+
+    private void readSections(ByteBuffer buffer) throws IOException {
+        buffer.getInt();
+        int fileVersion = buffer.getInt();
+        if (fileVersion != version)
+            throw new IOException("unsupported object file version " + fileVersion);
+        codeSize = buffer.getInt();
+        dataSize = buffer.getInt();
+        entry = buffer.getInt();
+        int sections = buffer.getInt();
+        if ((codeSize < 0) || (codeSize > code.length - Machine.CB))
+            throw new IOException("invalid code size " + codeSize);
+        if ((dataSize < 0) || (dataSize > TamVM.maxDataStoreSize))
+            throw new IOException("invalid data store size " + dataSize);
+        if ((entry < Machine.CB) || (entry >= Machine.CB + Math.max(codeSize, 1)))
+            throw new IOException("invalid entry address " + entry);
+        for (int addr = Machine.CB; addr < Machine.CB + codeSize; addr++)
+            code[addr] = Instruction.unpack(buffer.getInt());
+        for (int i = 0; i < sections; i++) {
+            int tag = buffer.getInt(), length = buffer.getInt();
+            if ((length < 0) || (length > buffer.remaining()) || (padded(length) > buffer.remaining()))
+                throw new IOException("invalid length " + length + " of section " + tag);
+            ByteBuffer contents = buffer.slice();
+            contents.limit(length);
+            buffer.position(buffer.position() + padded(length));
+            if (tag == constantsSection) {
+                readConstants(contents, contents.getInt());
+                if (contents.hasRemaining())
+                    throw new IOException("invalid constants section");
+            } else if (tag == debugSection) {
+                debugInfo = new byte[length];
+                contents.get(debugInfo);
+            }
+        }
+    }
+
+    private void readLegacy(ByteBuffer buffer) throws IOException {
+        int addr = Machine.CB;
+        while (buffer.hasRemaining()) {
+            Instruction instr = new Instruction();
+            instr.op = buffer.getInt();
+            instr.r = buffer.getInt();
+            instr.n = buffer.getInt();
+            instr.d = buffer.getInt();
+            if (instr.op == Machine.constantsOp) {
+                readConstants(buffer, instr.d);
+                break;
+            }
+            if (addr == code.length)
+                throw new IOException("program too large for code store");
+            code[addr] = instr;
+            addr = addr + 1;
+        }
+        codeSize = addr - Machine.CB;
+    }
+
+    private void readConstants(ByteBuffer buffer, int size) throws IOException {
+        if ((size < 0) || (size > buffer.remaining() / 4))
+            throw new IOException("invalid constant segment size " + size);
+        constants = new int[size];
+        buffer.asIntBuffer().get(constants);
+        buffer.position(buffer.position() + 4 * size);
+        int count = buffer.getInt();
+        if ((count < 0) || (count > size) || (count > buffer.remaining() / 4))
+            throw new IOException("invalid relocation count " + count);
+        relocations = new int[count];
+        buffer.asIntBuffer().get(relocations);
+        buffer.position(buffer.position() + 4 * count);
+        for (int i = 0; i < count; i++)
+            if ((relocations[i] < -size) || (relocations[i] >= 0))
+                throw new IOException("invalid relocation " + relocations[i]);
+    }
+
+
+// WRITING
+
+    /**
+     * Writes the object program to the named file, replacing any file of
+     * that name.
+     */
+    public void save(String objectName) throws IOException {
+        FileChannel objectFile = FileChannel.open(Paths.get(objectName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            write(objectFile);
+        } finally {
+            objectFile.close();
+        }
+    }
+
+    /**
+     * Writes the object program to the given channel.
+     *
+     * @throws IOException if an instruction's fields do not fit in a word.
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ProgramIO.bufferSize);
+        int sections = ((constants.length > 0) ? 1 : 0) + ((debugInfo != null) ? 1 : 0);
+
+        buffer.putInt(magic).putInt(version).putInt(codeSize).putInt(dataSize).putInt(entry).putInt(sections);
+        for (int addr = Machine.CB; addr < Machine.CB + codeSize; addr++) {
+            if (!code[addr].fitsWord())
+                throw new IOException("instruction at " + addr + " cannot be packed into a word");
+            room(channel, buffer, 4).putInt(code[addr].pack());
+        }
+        if (constants.length > 0) {
+            room(channel, buffer, 8).putInt(constantsSection).putInt(4 * (2 + constants.length + relocations.length));
+            room(channel, buffer, 4).putInt(constants.length);
+            for (int word : constants)
+                room(channel, buffer, 4).putInt(word);
+            room(channel, buffer, 4).putInt(relocations.length);
+            for (int displacement : relocations)
+                room(channel, buffer, 4).putInt(displacement);
+        }
+        if (debugInfo != null) {
+            room(channel, buffer, 8).putInt(debugSection).putInt(debugInfo.length);
+            for (byte b : debugInfo)
+                room(channel, buffer, 1).put(b);
+            for (int i = debugInfo.length; i < padded(debugInfo.length); i++)
+                room(channel, buffer, 1).put((byte) 0);
+        }
+        flush(channel, buffer);
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static ByteBuffer room(WritableByteChannel channel, ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() < size)
+            flush(channel, buffer);
+        return buffer;
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,242 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The execution profile of a program run by the reference loop: how many
+ * times each instruction, each operation code and each primitive routine
+ * was executed, and how many times each routine was called and how long
+ * its calls took in all.
+ * <p>
+ * A routine's time runs from its call to its return, including the time of
+ * the routines it calls; while it is active, a recursive call of it adds
+ * to its calls but not to its time. The main program is the routine at CB.
+ * <p>
+ * The profile can be written to a file as lines of tab-separated fields,
+ * one line per item counted:
+ * <pre>
+ *   routine    address  calls  nanoseconds  name
+ *   address    address  count  instruction  source
+ *   op         name     count
+ *   primitive  name     count
+ * </pre>
+ */
+
+final class Profile {
+
+    private final TamVM vm;
+
+    final long[] addressCounts = new long[Machine.PB];
+    final long[] opCounts = new long[16];
+    final long[] primitiveCounts = new long[Machine.checkpointDisplacement + 1];
+    final long[] calls = new long[Machine.PB], nanos = new long[Machine.PB];
+
+    // the number of active calls of each routine
+    private final int[] activations = new int[Machine.PB];
+
+    // the entry address and start time of each active call, innermost last
+    private int[] entries = new int[64];
+    private long[] starts = new long[64];
+    private int depth = 0;
+
+    Profile(TamVM vm) {
+        this.vm = vm;
+        enter(Machine.CB);
+    }
+
+
+// COUNTING
+
+    /**
+     * Counts the given instruction, which is at CP and about to be executed.
+     */
+    void step(Instruction instr) {
+        addressCounts[vm.CP]++;
+        if ((instr.op < 0) || (instr.op >= opCounts.length))
+            return;             // the loop will fail
+        opCounts[instr.op]++;
+        switch (instr.op) {
+            case Machine.CALLop:
+                call(instr.d + vm.content(instr.r));
+                break;
+            case Machine.CALLIop:
+                call(vm.data[vm.ST - 1]);
+                break;
+            case Machine.RETURNop:
+                leave(System.nanoTime());
+                break;
+        }
+    }
+
+    private void call(int addr) {
+        if (addr >= Machine.PB) {
+            if (addr - Machine.PB < primitiveCounts.length)
+                primitiveCounts[addr - Machine.PB]++;
+        } else if (addr >= Machine.CB)
+            enter(addr);
+    }
+
+    private void enter(int addr) {
+        if (depth == entries.length) {
+            entries = Arrays.copyOf(entries, 2 * depth);
+            starts = Arrays.copyOf(starts, 2 * depth);
+        }
+        entries[depth] = addr;
+        starts[depth] = System.nanoTime();
+        depth++;
+        calls[addr]++;
+        activations[addr]++;
+    }
+
+    private void leave(long now) {
+        if (depth == 0)
+            return;             // a return from a call made before a restore
+        depth--;
+        int addr = entries[depth];
+        activations[addr]--;
+        if (activations[addr] == 0)
+            nanos[addr] += now - starts[depth];
+    }
+
+    /**
+     * Ends the calls still active, when the program stops.
+     */
+    void finish() {
+        long now = System.nanoTime();
+        while (depth > 0)
+            leave(now);
+    }
+
+
+// REPORTING
+
+    private String source(int addr) {
+        return (vm.debugInfo == null) ? "" : vm.debugInfo.describe(addr);
+    }
+
+    private String routine(int addr) {
+        return (vm.debugInfo == null) ? "" : vm.debugInfo.routine(addr);
+    }
+
+    static String instruction(Instruction instr) {
+        if ((instr.op == Machine.CALLop) && (instr.r == Machine.PBr)) {
+            String name = Disassembler.primitiveName(instr.d);
+            return "CALL " + ((name == null) ? "primitive " + instr.d : name);
+        }
+        return op(instr.op);
+    }
+
+    private static String op(int op) {
+        if ((op < 0) || (op >= Disassembler.opNames.length) || (Disassembler.opNames[op] == null))
+            return "op " + op;
+        return Disassembler.opNames[op];
+    }
+
+    private static String primitive(int d) {
+        String name = Disassembler.primitiveName(d);
+        return (name == null) ? "primitive " + d : name;
+    }
+
+    private Integer[] routines() {
+        // Returns the entry addresses of the routines called, longest time
+        // first.
+        ArrayList<Integer> routines = new ArrayList<Integer>();
+        for (int addr = Machine.CB; addr < vm.CT; addr++)
+            if (calls[addr] > 0)
+                routines.add(addr);
+        Integer[] sorted = routines.toArray(new Integer[0]);
+        Arrays.sort(sorted, Comparator.comparingLong((Integer addr) -> -nanos[addr]));
+        return sorted;
+    }
+
+    private static Integer[] ranked(long[] counts, int from, int to) {
+        // Returns the indexes from .. to-1 whose counts are not zero,
+        // highest count first.
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        for (int i = from; i < to; i++)
+            if (counts[i] > 0)
+                indexes.add(i);
+        Integer[] sorted = indexes.toArray(new Integer[0]);
+        Arrays.sort(sorted, Comparator.comparingLong((Integer i) -> -counts[i]));
+        return sorted;
+    }
+
+    /**
+     * Writes a summary of the profile, most expensive items first.
+     */
+    void show(PrintStream out, int limit) {
+        long total = Math.max(nanos[Machine.CB], 1);
+        long instructions = 0;
+        for (long count : opCounts)
+            instructions += count;
+        instructions = Math.max(instructions, 1);
+
+        out.println("");
+        out.println("Profiled by the reference loop, without superinstructions, decoded");
+        out.println("dispatch or the JIT: the counts are those of any run, but the times");
+        out.println("are the reference loop's. Use -sample for the times of a normal run.");
+
+        out.println("");
+        out.println("Routines, by time including the routines they call:");
+        out.println("       calls        ms      %  routine");
+        for (int addr : routines())
+            out.println(String.format("%12d %9d %6.1f  %d  %s", calls[addr], nanos[addr] / 1000000,
+                    100.0 * nanos[addr] / total, addr, routine(addr)));
+
+        out.println("");
+        out.println("Instructions, by count:");
+        out.println("       count      %  address");
+        Integer[] addresses = ranked(addressCounts, Machine.CB, vm.CT);
+        for (int i = 0; (i < addresses.length) && (i < limit); i++) {
+            int addr = addresses[i];
+            out.println(String.format("%12d %6.1f  %d  %-16s %s", addressCounts[addr],
+                    100.0 * addressCounts[addr] / instructions, addr,
+                    instruction(vm.code[addr]), source(addr)));
+        }
+        if (addresses.length > limit)
+            out.println("         ...");
+
+        out.println("");
+        out.println("Operations, by count:");
+        for (int op : ranked(opCounts, 0, opCounts.length))
+            out.println(String.format("%12d %6.1f  %s", opCounts[op],
+                    100.0 * opCounts[op] / instructions, op(op)));
+
+        Integer[] primitives = ranked(primitiveCounts, 0, primitiveCounts.length);
+        if (primitives.length > 0) {
+            out.println("");
+            out.println("Primitive routines, by count:");
+            for (int d : primitives)
+                out.println(String.format("%12d  %s", primitiveCounts[d], primitive(d)));
+        }
+    }
+
+    /**
+     * Writes the whole profile to the named file, in the format above.
+     */
+    void save(String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+        try {
+            for (int addr : routines())
+                out.println("routine\t" + addr + "\t" + calls[addr] + "\t" + nanos[addr] + "\t" + routine(addr));
+            for (int addr : ranked(addressCounts, Machine.CB, vm.CT))
+                out.println("address\t" + addr + "\t" + addressCounts[addr] + "\t"
+                        + instruction(vm.code[addr]) + "\t" + source(addr));
+            for (int op : ranked(opCounts, 0, opCounts.length))
+                out.println("op\t" + op(op) + "\t" + opCounts[op]);
+            for (int d : ranked(primitiveCounts, 0, primitiveCounts.length))
+                out.println("primitive\t" + primitive(d) + "\t" + primitiveCounts[d]);
+            if (out.checkError())
+                throw new IOException("error writing " + fileName);
+        } finally {
+            out.close();
+        }
+    }
+}
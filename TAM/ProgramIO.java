@@ -0,0 +1,136 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * The input and output of a TAM program: the bytes read by the get,
+ * geteol and getint primitives, and written by put, puteol and putint.
+ * <p>
+ * Both directions are buffered, so that a primitive call costs a store
+ * into a ByteBuffer rather than a call on a synchronized stream. Output
+ * is written to its channel when the buffer fills, before input is read
+ * from an empty buffer (so that a prompt appears before the program waits
+ * for a reply), and when the program halts or fails. Any channel will do,
+ * so a program's input and output can be files, in-memory buffers or the
+ * standard streams. For example:
+ * <pre>
+ *   new ProgramIO(FileChannel.open(inPath), FileChannel.open(outPath, WRITE, CREATE))
+ * </pre>
+ */
+
+public class ProgramIO {
+
+    final static int
+            bufferSize = 8192;
+
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private final ByteBuffer inBuffer, outBuffer;
+
+    // characters are written in the encoding System.out would use
+    private final Charset charset = Charset.defaultCharset();
+    private final byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+
+    // set once the input channel has reached its end
+    private boolean endOfInput = false;
+
+    // the number of bytes the program has read and written, counting
+    // from the start of a run or from the checkpoint it was restored from
+    long bytesRead, bytesWritten;
+
+    public ProgramIO(ReadableByteChannel input, WritableByteChannel output) {
+        this.input = input;
+        this.output = output;
+        inBuffer = ByteBuffer.allocate(bufferSize);
+        inBuffer.flip();                // empty
+        outBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    public ProgramIO(InputStream in, OutputStream out) {
+        this(Channels.newChannel(in), Channels.newChannel(out));
+    }
+
+
+// INPUT
+
+    /**
+     * Returns the next byte of input, or -1 at the end of the input.
+     */
+    int read() throws IOException {
+        if (!inBuffer.hasRemaining()) {
+            if (endOfInput)
+                return -1;
+            flush();
+            inBuffer.clear();
+            Events.InputWait event = new Events.InputWait();
+            event.begin();
+            int count;
+            do
+                count = input.read(inBuffer);
+            while (count == 0);
+            inBuffer.flip();
+            event.bytes = Math.max(count, 0);
+            event.commit();
+            if (count < 0) {
+                endOfInput = true;
+                return -1;
+            }
+        }
+        bytesRead++;
+        return inBuffer.get() & 0xFF;
+    }
+
+
+// OUTPUT
+
+    private void room(int size) throws IOException {
+        if (outBuffer.remaining() < size)
+            flush();
+    }
+
+    void writeChar(char ch) throws IOException {
+        if (ch < 0x80) {
+            room(1);
+            outBuffer.put((byte) ch);
+            bytesWritten++;
+        } else
+            writeBytes(String.valueOf(ch).getBytes(charset));
+    }
+
+    void writeInt(long value) throws IOException {
+        writeBytes(Long.toString(value).getBytes(charset));
+    }
+
+    void writeEol() throws IOException {
+        writeBytes(lineSeparator);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        room(bytes.length);
+        outBuffer.put(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    /**
+     * Writes any buffered output to the output channel.
+     */
+    public void flush() throws IOException {
+        outBuffer.flip();
+        if (outBuffer.hasRemaining()) {
+            Events.OutputWait event = new Events.OutputWait();
+            event.begin();
+            event.bytes = outBuffer.remaining();
+            while (outBuffer.hasRemaining())
+                output.write(outBuffer);
+            event.commit();
+        }
+        outBuffer.clear();
+    }
+}
@@ -0,0 +1,137 @@
+package TAM;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A sampling profiler: a thread that asks the machine, every millisecond,
+ * to record the call stack of the running program, and the stacks it has
+ * recorded.
+ * <p>
+ * The thread only sets its due flag and the machine's pollDue flag. The
+ * dispatch loop tests pollDue where a routine is entered and where a jump
+ * goes backwards, and compiled code where a jump goes backwards (see
+ * Translator), so a sample is taken at the first such point after it
+ * falls due, and costs nothing between them. The stack is found by
+ * following the dynamic links from LB, and the return addresses beside
+ * them, out to the main program.
+ * <p>
+ * The stacks are written in the collapsed format read by flame graph
+ * tools: one line per distinct stack, the outermost routine first, the
+ * names separated by semicolons, then a space and the number of samples.
+ * Routines are named from the program's debug table if it has one, and
+ * otherwise by their entry addresses.
+ */
+
+final class Sampler implements Runnable {
+
+    // the time between samples, in milliseconds
+    final static int
+            interval = 1;
+
+    private final TamVM vm;
+    private final HashMap<String, Long> stacks = new HashMap<String, Long>();
+    private Thread thread;
+
+    // set by the thread when the next sample is to be taken
+    volatile boolean due = false;
+
+    int samples = 0;
+
+    Sampler(TamVM vm) {
+        this.vm = vm;
+    }
+
+    void start() {
+        thread = new Thread(this, "TAM sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException s) {
+            Thread.currentThread().interrupt();
+        }
+        due = false;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                due = true;
+                vm.pollDue = true;
+            }
+        } catch (InterruptedException s) {
+            // the program has stopped
+        }
+    }
+
+
+// SAMPLING
+
+    private String name(int addr) {
+        if (vm.debugInfo != null)
+            return vm.debugInfo.routine(addr);
+        if ((vm.verifier != null) && (vm.verifier.routineOf != null))
+            return "routine " + vm.verifier.routineOf[addr];
+        return "address " + addr;
+    }
+
+    /**
+     * Records the call stack of a program about to execute the instruction
+     * at cp in the frame at lb.
+     */
+    void sample(int cp, int lb) {
+        due = false;
+        ArrayList<String> frames = new ArrayList<String>();
+        int addr = cp, frame = lb;
+        while (frame != TamVM.SB) {
+            if ((addr < TamVM.CB) || (addr >= vm.CT) || (frame < TamVM.SB) || (frame + 2 >= vm.HB)
+                    || (frames.size() > (vm.HB - TamVM.SB) / Machine.linkDataSize))
+                return;         // not a well-formed stack; drop the sample
+            frames.add(name(addr));
+            addr = vm.data[frame + 2] - 1;     // the call
+            frame = vm.data[frame + 1];
+        }
+        if ((addr < TamVM.CB) || (addr >= vm.CT))
+            return;
+        frames.add(name(addr));
+
+        StringBuilder stack = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            stack.append(frames.get(i));
+            if (i > 0)
+                stack.append(';');
+        }
+        stacks.merge(stack.toString(), 1L, Long::sum);
+        samples++;
+    }
+
+
+// REPORTING
+
+    /**
+     * Writes the stacks recorded to the named file, in collapsed format.
+     */
+    void save(String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(fileName)));
+        try {
+            for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(stacks).entrySet())
+                out.println(entry.getKey() + " " + entry.getValue());
+            if (out.checkError())
+                throw new IOException("error writing " + fileName);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,2277 @@
+package TAM;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * A TAM machine: a code store, a data store, the registers, and the
+ * streams the program's get and put primitives use.
+ * <p>
+ * Each TamVM runs one program and shares no mutable state with any other,
+ * so a single JVM can run many programs at once, each on a thread of its
+ * own. For example:
+ * <pre>
+ *   TamVM vm = new TamVM(in, out);
+ *   vm.loadObjectProgram("obj.tam");
+ *   executor.submit(vm);
+ * </pre>
+ * A TamVM must not be run on two threads at once.
+ * <p>
+ * A program can be stopped where it calls the checkpoint primitive, and
+ * its state saved in a snapshot from which another machine can resume it
+ * (see SNAPSHOTS below).
+ */
+
+public class TamVM implements Runnable {
+
+    // the program's input and output, and the stream the status reports
+    // are written to
+    final ProgramIO io;
+    final PrintStream out;
+
+    // how run() runs the program
+    boolean reference = false, fusing = true, compilingAll = false, collecting = false;
+
+    // the file a snapshot is written to when the program calls the
+    // checkpoint primitive, or null if checkpoint does nothing
+    String snapshotName;
+
+    // the file the profile is written to, or null if the program is not
+    // profiled; a profiled program is run by the reference loop, so that
+    // the decoded loop carries no profiling code
+    String profileName;
+    Profile profile;
+
+    // whether the program's heap allocations are counted by the code
+    // address that made them, which also runs it by the reference loop
+    boolean profilingAllocations = false;
+    AllocationProfile allocationProfile;
+
+    // the file the program's code coverage is written to, or null if it
+    // is not recorded (see COVERAGE below)
+    String coverageName;
+    Coverage coverage;
+
+    // the file the sampled call stacks are written to, or null if the
+    // program is not sampled
+    String samplesName;
+    Sampler sampler;
+
+    // whether the machine's figures are published through JMX while it
+    // runs (see Monitor), and the name it is published under
+    boolean monitoring = false;
+    String programName = "program";
+    Monitor monitor;
+
+    // set by another thread when the dispatch loop should call poll at the
+    // next routine entry or backward jump: by the sampler when a sample is
+    // due, and by the monitor when its figures have been read
+    volatile boolean pollDue = false;
+
+    public TamVM() {
+        this(System.in, System.out);
+    }
+
+    public TamVM(InputStream in, PrintStream out) {
+        this(in, out, defaultDataStoreSize);
+    }
+
+    /**
+     * Creates a machine whose data store holds the given number of words.
+     *
+     * @throws IllegalArgumentException if the size is not between 1 and
+     *                                  maxDataStoreSize.
+     */
+    public TamVM(InputStream in, PrintStream out, int dataStoreSize) {
+        this(new ProgramIO(in, out), out, dataStoreSize);
+    }
+
+    /**
+     * Creates a machine whose program reads and writes through io, and
+     * whose status reports are written to out.
+     *
+     * @throws IllegalArgumentException if the size is not between 1 and
+     *                                  maxDataStoreSize.
+     */
+    public TamVM(ProgramIO io, PrintStream out, int dataStoreSize) {
+        if ((dataStoreSize < 1) || (dataStoreSize > maxDataStoreSize))
+            throw new IllegalArgumentException("data store size " + dataStoreSize
+                    + " not between 1 and " + maxDataStoreSize);
+        this.io = io;
+        this.out = out;
+        HB = SB + dataStoreSize;
+        data = new int[dataStoreSize];
+        jit = new Jit(this);
+    }
+
+
+// CODE STORE
+
+    Instruction[] code = new Instruction[Machine.PB];
+
+    // the source lines and routines of the program in code store, or null
+    // if its object file has no debug table
+    DebugInfo debugInfo;
+
+    // the verifier's tables for the program in code store, and the JIT
+    // that compiles its hot routines
+    Verifier verifier;
+    Jit jit;
+
+
+// DATA STORE
+
+    // Implementation notes:
+    // The size of the data store is chosen when the machine is created.
+    // Every address must be representable as a TAM integer, since programs
+    // compute addresses with the overflow-checked add primitive, so the
+    // data store can hold at most maxintRep + 1 words.
+
+    public final static int
+            defaultDataStoreSize = 1024,
+            maxDataStoreSize = Machine.maxintRep + 1;
+
+    final int[] data;
+
+
+// DATA STORE REGISTERS AND OTHER REGISTERS
+
+    final static int
+            CB = 0,
+            SB = 0;
+
+    final int
+            HB;         // = upper bound of data array + 1
+
+    int
+            CT, CP, ST, HT, LB, status;
+
+    // the highest address the stack may reach in the frames entered so far,
+    // for a program run without a space check on each push
+    int
+            stackLimit;
+
+    // the highest address the stack has reached, or in the decoded dispatch
+    // loop the highest stackLimit, for the monitor's high-water mark
+    int
+            stackPeak;
+
+    // the allocator for the blocks between HT and the constants
+    Heap heap = new Heap(this);
+
+    // the constant segment of the program, loaded below HB, and the
+    // displacements from HB of the words in it that hold addresses
+    int[] constants = new int[0], relocations = new int[0];
+
+    // status values
+    final static int
+            running = 0, halted = 1, failedDataStoreFull = 2, failedInvalidCodeAddress = 3,
+            failedInvalidInstruction = 4, failedOverflow = 5, failedZeroDivide = 6,
+            failedIOError = 7, failedRangecheckError = 8, checkpointed = 9;
+
+    long
+            accumulator;
+
+    // number of instructions executed by the last run
+    long
+            instructionCount;
+
+    int content(int r) {
+        // Returns the current content of register r,
+        // even if r is one of the pseudo-registers L1..L6.
+
+        switch (r) {
+            case Machine.CBr:
+                return CB;
+            case Machine.CTr:
+                return CT;
+            case Machine.PBr:
+                return Machine.PB;
+            case Machine.PTr:
+                return Machine.PT;
+            case Machine.SBr:
+                return SB;
+            case Machine.STr:
+                return ST;
+            case Machine.HBr:
+                return HB;
+            case Machine.HTr:
+                return HT;
+            case Machine.LBr:
+                return LB;
+            case Machine.L1r:
+                return data[LB];
+            case Machine.L2r:
+                return data[data[LB]];
+            case Machine.L3r:
+                return data[data[data[LB]]];
+            case Machine.L4r:
+                return data[data[data[data[LB]]]];
+            case Machine.L5r:
+                return data[data[data[data[data[LB]]]]];
+            case Machine.L6r:
+                return data[data[data[data[data[data[LB]]]]]];
+            case Machine.CPr:
+                return CP;
+            default:
+                return 0;
+        }
+    }
+
+
+    int content(int r, int cp, int st, int lb, int dp, int ht) {
+        // Returns the content of register r, given the values of the
+        // registers that the decoded dispatch loop keeps in locals and the
+        // index dp of the current display.
+
+        switch (r) {
+            case Machine.SBr:
+                return SB;
+            case Machine.LBr:
+                return lb;
+            case Machine.L1r:
+                return data[lb];
+            case Machine.L2r:
+            case Machine.L3r:
+            case Machine.L4r:
+            case Machine.L5r:
+            case Machine.L6r:
+                return display(dp, r - Machine.LBr, lb);
+            case Machine.CBr:
+                return CB;
+            case Machine.STr:
+                return st;
+            case Machine.HTr:
+                return ht;
+            case Machine.CPr:
+                return cp;
+            case Machine.CTr:
+                return CT;
+            case Machine.PBr:
+                return Machine.PB;
+            case Machine.PTr:
+                return Machine.PT;
+            case Machine.HBr:
+                return HB;
+            default:
+                return 0;
+        }
+    }
+
+
+// DISPLAY
+
+    // Implementation notes:
+    // The decoded dispatch loop keeps a display for each active frame, so
+    // that L1 .. L6 can be read with one load instead of a walk along the
+    // static chain. The display of a frame is displayStride words of
+    // displays starting at dp, and holds LB, L1, .. L6 for that frame.
+    // On a CALL whose static link is LB or one of L1 .. L5, the callee's
+    // display is the caller's shifted along by one or more places; on a
+    // RETURN the caller's display is simply uncovered again. Entries that
+    // cannot be derived that way (the main program's, those beyond L6 of
+    // the caller, and those of closures called by CALLI) are set to
+    // unknown, and are then found by walking the static chain as before.
+
+    final static int
+            displayStride = 8,
+            unknownLink = -1;
+
+    int[] displays;
+
+    // the index of the current display, for compiled code
+    int displayBase;
+
+    int display(int dp, int k, int lb) {
+        // Returns the content of register L<k>.
+        int addr = displays[dp + k];
+        if (addr < 0) {
+            addr = lb;
+            for (int i = 0; i < k; i++)
+                addr = data[addr];
+        }
+        return addr;
+    }
+
+    void enterDisplay(int dp, int newLB, int r) {
+        // Sets up the display at dp for a frame at newLB whose static link
+        // was taken from register r of the display below it.
+        int k = ((r >= Machine.LBr) && (r <= Machine.L6r)) ? r - Machine.LBr : -1;
+        int from = dp - displayStride;
+        displays[dp] = newLB;
+        displays[dp + 1] = data[newLB];     // the static link
+        for (int j = 2; j <= 6; j++)
+            displays[dp + j] = ((k >= 0) && (k + j - 1 <= 6)) ? displays[from + k + j - 1] : unknownLink;
+    }
+
+
+// PROGRAM STATUS
+
+    void dump() {
+        // Writes a summary of the machine state.
+        int
+                addr, staticLink, dynamicLink,
+                localRegNum;
+
+        out.println("");
+        out.println("State of data store and registers:");
+        out.println("");
+        if (HT == HB - constants.length)
+            out.println("            |--------|          (heap is empty)");
+        else {
+            out.println("       HB-->");
+            out.println("            |--------|");
+            if (constants.length > 0)
+                out.println("            |  ....  |          (" + constants.length + " words of constants)");
+            for (addr = HB - constants.length - 1; addr >= HT; addr--) {
+                out.print(addr + ":");
+                if (addr == HT)
+                    out.print(" HT-->");
+                else
+                    out.print("      ");
+                out.println("|" + data[addr] + "|");
+            }
+            out.println("            |--------|");
+        }
+        out.println("            |////////|");
+        out.println("            |////////|");
+        if (ST == SB)
+            out.println("            |--------|          (stack is empty)");
+        else {
+            dynamicLink = LB;
+            staticLink = LB;
+            localRegNum = Machine.LBr;
+            out.println("      ST--> |////////|");
+            out.println("            |--------|");
+            for (addr = ST - 1; addr >= SB; addr--) {
+                out.print(addr + ":");
+                if (addr == SB)
+                    out.print(" SB-->");
+                else if (addr == staticLink) {
+                    switch (localRegNum) {
+                        case Machine.LBr:
+                            out.print(" LB-->");
+                            break;
+                        case Machine.L1r:
+                            out.print(" L1-->");
+                            break;
+                        case Machine.L2r:
+                            out.print(" L2-->");
+                            break;
+                        case Machine.L3r:
+                            out.print(" L3-->");
+                            break;
+                        case Machine.L4r:
+                            out.print(" L4-->");
+                            break;
+                        case Machine.L5r:
+                            out.print(" L5-->");
+                            break;
+                        case Machine.L6r:
+                            out.print(" L6-->");
+                            break;
+                    }
+                    staticLink = data[addr];
+                    localRegNum = localRegNum + 1;
+                } else
+                    out.print("      ");
+                if ((addr == dynamicLink) && (dynamicLink != SB))
+                    out.print("|SL=" + data[addr] + "|");
+                else if ((addr == dynamicLink + 1) && (dynamicLink != SB))
+                    out.print("|DL=" + data[addr] + "|");
+                else if ((addr == dynamicLink + 2) && (dynamicLink != SB))
+                    out.print("|RA=" + data[addr] + "|");
+                else
+                    out.print("|" + data[addr] + "|");
+                out.println("");
+                if (addr == dynamicLink) {
+                    out.println("            |--------|");
+                    dynamicLink = data[addr + 1];
+                }
+            }
+        }
+        out.println("");
+    }
+
+    public void showStatus() {
+        // Writes an indication of whether and why the program has terminated.
+        out.println("");
+        switch (status) {
+            case running:
+                out.println("Program is running.");
+                break;
+            case halted:
+                out.println("Program has halted normally.");
+                break;
+            case failedDataStoreFull:
+                out.println("Program has failed due to exhaustion of Data Store.");
+                break;
+            case failedInvalidCodeAddress:
+                out.println("Program has failed due to an invalid code address.");
+                break;
+            case failedInvalidInstruction:
+                out.println("Program has failed due to an invalid instruction.");
+                break;
+            case failedOverflow:
+                out.println("Program has failed due to overflow.");
+                break;
+            case failedZeroDivide:
+                out.println("Program has failed due to division by zero.");
+                break;
+            case failedIOError:
+                out.println("Program has failed due to an IO error.");
+                break;
+            case failedRangecheckError:
+                out.println("Program has failed due to a rangecheck.");
+                break;
+            case checkpointed:
+                out.println("Program has been checkpointed to " + snapshotName + ".");
+                break;
+        }
+        if ((status != running) && (status != halted) && (status != checkpointed))
+            out.println("The failing instruction is at " + describe(CP) + ".");
+        heap.showHeap();
+        if ((status != halted) && (status != checkpointed))
+            dump();
+    }
+
+    String describe(int addr) {
+        // Describes a code address, with its source line if the program
+        // has a debug table.
+        if ((debugInfo == null) || (addr < CB) || (addr >= CT))
+            return "address " + addr;
+        return "address " + addr + " (" + debugInfo.describe(addr) + ")";
+    }
+
+    void showProfile() {
+        // Writes the most frequently executed instructions, and the routines
+        // that took the most time.
+        if (profile != null)
+            profile.show(out, 20);
+        if (allocationProfile != null)
+            allocationProfile.show(out, 10);
+    }
+
+    void showTiming(long nanos) {
+        // Writes the number of instructions executed and the rate at which
+        // they were executed.
+        long millis = nanos / 1000000;
+        out.println("Executed " + instructionCount + " instructions in "
+                + millis + " ms (" + (instructionCount * 1000000000L / Math.max(nanos, 1))
+                + " instructions/s).");
+    }
+
+
+// DYNAMIC STRINGS
+
+    // Implementation notes:
+    // A dynamic string is the address of a header of two words: the length
+    // of the string and the address of its first character. The characters
+    // lie in a buffer, preceded by two words: the buffer's capacity and the
+    // number of characters in use. A string literal is a single block: a
+    // full buffer followed by its header.
+    // Several strings can share a buffer, each being a prefix of what it
+    // holds. When the left operand of ++ holds every character in use in
+    // its buffer and there is room for the right operand after them, the
+    // right operand is copied into the buffer and only a new header is
+    // allocated; the characters of the strings already sharing the buffer
+    // do not change. Otherwise both operands are copied into a new buffer
+    // of twice the length needed, so building a string with s := s ++ x
+    // takes time and space linear in its final length.
+
+    final static int
+            stringHeaderSize = 2,
+            bufferHeaderSize = 2;
+
+    int compareStrings(int string1, int string2) {
+        // Returns 0, 1 or 2 as string1 is less than, equal to or greater
+        // than string2 in lexicographic order.
+
+        int length1 = data[string1], chars1 = data[string1 + 1];
+        int length2 = data[string2], chars2 = data[string2 + 1];
+        int result = compareWords(chars1, chars2, Math.min(length1, length2));
+        if (result != 1)
+            return result;
+        return (length1 < length2) ? 0 : (length1 > length2) ? 2 : 1;
+    }
+
+    boolean equalStrings(int string1, int string2) {
+        // Tests whether two strings hold the same characters; strings of
+        // different lengths are told apart without looking at them.
+
+        int length = data[string1], chars1 = data[string1 + 1], chars2 = data[string2 + 1];
+        return (length == data[string2]) && ((chars1 == chars2) || equal(length, chars1, chars2));
+    }
+
+    int concatenate(int string1, int string2) {
+        // Returns a string holding the characters of string1 followed by
+        // those of string2, or sets status if there is no room for it.
+
+        int length1 = data[string1], chars1 = data[string1 + 1];
+        int length2 = data[string2], chars2 = data[string2 + 1];
+        int length = length1 + length2;
+        if (length2 == 0)
+            return string1;
+        if (length1 == 0)
+            return string2;
+
+        int header, chars;
+        if ((data[chars1 - 1] == length1) && (data[chars1 - 2] >= length)) {
+            // append to string1's buffer
+            header = heap.allocate(stringHeaderSize);
+            if (status != running)
+                return 0;
+            chars = chars1;
+            System.arraycopy(data, chars2, data, chars1 + length1, length2);
+            data[chars - 1] = length;
+        } else {
+            int capacity = 2 * length;
+            header = heap.allocateIfRoom(stringHeaderSize + bufferHeaderSize + capacity);
+            if (header == Heap.none) {
+                capacity = length;
+                header = heap.allocate(stringHeaderSize + bufferHeaderSize + capacity);
+                if (status != running)
+                    return 0;
+            }
+            chars = header + stringHeaderSize + bufferHeaderSize;
+            data[chars - 2] = capacity;
+            data[chars - 1] = length;
+            System.arraycopy(data, chars1, data, chars, length1);
+            System.arraycopy(data, chars2, data, chars + length1, length2);
+        }
+        data[header] = length;
+        data[header + 1] = chars;
+        return header;
+    }
+
+
+// INTERPRETATION
+
+    void checkSpace(int spaceNeeded) {
+        // Signals failure if there is not enough space to expand the stack or
+        // heap by spaceNeeded, even after collecting garbage if enabled.
+
+        if ((HT - Math.max(ST, stackLimit) < spaceNeeded)
+                && !(collecting && heap.collect() && (HT - Math.max(ST, stackLimit) >= spaceNeeded)))
+            status = failedDataStoreFull;
+    }
+
+    int collectGarbage(int st, int lb, int ht) {
+        // Collects garbage, if enabled, for the decoded dispatch loop, given
+        // the registers it keeps in locals, and returns the new value of HT.
+        if (!collecting)
+            return ht;
+        ST = st;
+        LB = lb;
+        HT = ht;
+        heap.collect();
+        return HT;
+    }
+
+    void poll(int cp, int st, int lb, int ht, long count) {
+        // Takes a sample, or publishes the machine's figures, as asked by
+        // another thread, given the registers the dispatch loop keeps in
+        // locals and the number of instructions it has not yet added to
+        // instructionCount.
+        pollDue = false;
+        if ((sampler != null) && sampler.due)
+            sampler.sample(cp, lb);
+        if (monitor != null)
+            monitor.publish(st, ht, instructionCount + count);
+    }
+
+    static boolean isTrue(int datum) {
+        // Tests whether the given datum represents true.
+        return (datum == Machine.trueRep);
+    }
+
+    boolean equal(int size, int addr1, int addr2) {
+        // Tests whether two multi-word objects are equal, given their common
+        // size and their base addresses.
+
+        return (size <= 0) || Arrays.equals(data, addr1, addr1 + size, data, addr2, addr2 + size);
+    }
+
+    int compareWords(int addr1, int addr2, int length) {
+        // Returns 0, 1 or 2 as the length words from addr1 are less than,
+        // equal to or greater than those from addr2 in lexicographic order.
+
+        int i = (length <= 0) ? -1 : Arrays.mismatch(data, addr1, addr1 + length, data, addr2, addr2 + length);
+        return (i < 0) ? 1 : (data[addr1 + i] < data[addr2 + i]) ? 0 : 2;
+    }
+
+    static void copy(int[] data, int from, int to, int n) {
+        // Copies n words from one address to another. A single word, by far
+        // the commonest case, is copied without calling System.arraycopy.
+        if (n == 1)
+            data[to] = data[from];
+        else if (n > 1)
+            System.arraycopy(data, from, data, to, n);
+    }
+
+    int overflowChecked(long datum) {
+        // Signals failure if the datum is too large to fit into a single word,
+        // otherwise returns the datum as a single word.
+
+        if ((-Machine.maxintRep <= datum) && (datum <= Machine.maxintRep))
+            return (int) datum;
+        else {
+            status = failedOverflow;
+            return 0;
+        }
+    }
+
+    static int toInt(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+
+    int currentChar;
+
+    int readInt() throws java.io.IOException {
+        int temp = 0;
+        int sign = 1;
+
+        do {
+            currentChar = io.read();
+        } while (Character.isWhitespace((char) currentChar));
+
+        if ((currentChar == '-') || (currentChar == '+'))
+            do {
+                sign = (currentChar == '-') ? -1 : 1;
+                currentChar = io.read();
+            } while ((currentChar == '-') || currentChar == '+');
+
+        if (Character.isDigit((char) currentChar))
+            do {
+                temp = temp * 10 + (currentChar - '0');
+                currentChar = io.read();
+            } while (Character.isDigit((char) currentChar));
+
+        return sign * temp;
+    }
+
+    void callPrimitive(int primitiveDisplacement) {
+        // Invokes the given primitive routine.
+
+        int addr, size;
+        char ch;
+
+        switch (primitiveDisplacement) {
+            case Machine.idDisplacement:
+                break; // nothing to be done
+            case Machine.notDisplacement:
+                data[ST - 1] = toInt(!isTrue(data[ST - 1]));
+                break;
+            case Machine.andDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
+                break;
+            case Machine.orDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
+                break;
+            case Machine.succDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] + 1);
+                break;
+            case Machine.predDisplacement:
+                data[ST - 1] = overflowChecked(data[ST - 1] - 1);
+                break;
+            case Machine.negDisplacement:
+                data[ST - 1] = -data[ST - 1];
+                break;
+            case Machine.addDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator + data[ST]);
+                break;
+            case Machine.subDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator - data[ST]);
+                break;
+            case Machine.multDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                data[ST - 1] = overflowChecked(accumulator * data[ST]);
+                break;
+            case Machine.divDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0)
+                    data[ST - 1] = (int) (accumulator / data[ST]);
+                else
+                    status = failedZeroDivide;
+                break;
+            case Machine.modDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST - 1];
+                if (data[ST] != 0)
+                    data[ST - 1] = (int) (accumulator % data[ST]);
+                else
+                    status = failedZeroDivide;
+                break;
+            case Machine.ltDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] < data[ST]);
+                break;
+            case Machine.leDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
+                break;
+            case Machine.geDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
+                break;
+            case Machine.gtDisplacement:
+                ST = ST - 1;
+                data[ST - 1] = toInt(data[ST - 1] > data[ST]);
+                break;
+            case Machine.eqDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.neDisplacement:
+                size = data[ST - 1]; // size of each comparand
+                ST = ST - 2 * size;
+                data[ST - 1] = toInt(!equal(size, ST - 1, ST - 1 + size));
+                break;
+            case Machine.eolDisplacement:
+                data[ST] = toInt(currentChar == '\n');
+                ST = ST + 1;
+                break;
+            case Machine.eofDisplacement:
+                data[ST] = toInt(currentChar == -1);
+                ST = ST + 1;
+                break;
+            case Machine.getDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    currentChar = io.read();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = (int) currentChar;
+                break;
+            case Machine.putDisplacement:
+                ST = ST - 1;
+                ch = (char) data[ST];
+                try {
+                    io.writeChar(ch);
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                break;
+            case Machine.geteolDisplacement:
+                try {
+                    while ((currentChar = io.read()) != '\n') ;
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                break;
+            case Machine.puteolDisplacement:
+                try {
+                    io.writeEol();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                break;
+            case Machine.getintDisplacement:
+                ST = ST - 1;
+                addr = data[ST];
+                try {
+                    accumulator = readInt();
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                data[addr] = (int) accumulator;
+                break;
+            case Machine.putintDisplacement:
+                ST = ST - 1;
+                accumulator = data[ST];
+                try {
+                    io.writeInt(accumulator);
+                } catch (java.io.IOException s) {
+                    status = failedIOError;
+                }
+                break;
+            case Machine.newDisplacement:
+                size = data[ST - 1];
+                data[ST - 1] = heap.allocate(size);
+                break;
+            case Machine.disposeDisplacement:
+                ST = ST - 1;
+                heap.dispose(data[ST]);
+                break;
+            case Machine.rangecheckDisplacement:
+                ST = ST - 2;
+                if (!(data[ST] <= data[ST-1] && data[ST-1] < data[ST+1]))
+                    status = failedRangecheckError;
+                break;
+            case Machine.fixedLexDisplacement: {
+                ST = ST - 1;
+                int strLen = data[ST];
+                ST = ST - (2 * strLen);
+                data[ST] = compareWords(ST, ST + strLen, strLen);
+                ST++;
+                break;
+            }
+            case Machine.dynamicEqDisplacement:
+                ST = ST - 1;
+                data[ST-1] = toInt(equalStrings(data[ST-1], data[ST]));
+                break;
+            case Machine.dynamicNeDisplacement:
+                ST = ST - 1;
+                data[ST-1] = toInt(!equalStrings(data[ST-1], data[ST]));
+                break;
+            case Machine.dynamicConcatDisplacement:
+                // both strings stay on the stack while the result is
+                // allocated, so that a collection cannot free them
+                addr = concatenate(data[ST-2], data[ST-1]);
+                ST = ST - 1;
+                if (status != running)
+                    break;
+                data[ST-1] = addr;
+                break;
+            case Machine.dynamicLexDisplacement:
+                ST = ST - 1;
+                data[ST-1] = compareStrings(data[ST-1], data[ST]);
+                break;
+            case Machine.regionBeginDisplacement:
+                heap.beginRegion();
+                break;
+            case Machine.regionEndDisplacement:
+                heap.endRegion();
+                break;
+            case Machine.checkpointDisplacement:
+                // stop, so that run() can write the snapshot
+                if (snapshotName != null)
+                    status = checkpointed;
+                break;
+        }
+    }
+
+    void interpretReference() {
+        // Runs the program in code store, fetching each instruction from its
+        // Instruction object. Kept as the reference implementation against
+        // which the decoded dispatch loop can be checked and timed.
+
+        Instruction currentInstr;
+        int op, r, n, d, addr, index;
+
+        // Initialize registers, unless resuming from a snapshot ...
+        if (restored)
+            status = running;
+        else {
+            ST = SB;
+            HT = loadConstants();
+            heap = new Heap(this);
+            LB = SB;
+            CP = CB;
+            stackLimit = SB;
+            stackPeak = SB;
+            status = (HT < SB) ? failedDataStoreFull : running;
+            instructionCount = 0;
+        }
+        while (status == running) {
+            // Fetch instruction ...
+            currentInstr = code[CP];
+            if (profile != null)
+                profile.step(currentInstr);
+            if (coverage != null)
+                coverage.mark(CP, 1);
+            if (ST > stackPeak)
+                stackPeak = ST;
+            if (pollDue)
+                poll(CP, ST, LB, HT, 0);
+            // Decode instruction ...
+            op = currentInstr.op;
+            r = currentInstr.r;
+            n = currentInstr.n;
+            d = currentInstr.d;
+            instructionCount = instructionCount + 1;
+            // Execute instruction ...
+            switch (op) {
+                case Machine.LOADop:
+                    addr = d + content(r);
+                    checkSpace(n);
+                    for (index = 0; index < n; index++)
+                        data[ST + index] = data[addr + index];
+                    ST = ST + n;
+                    CP = CP + 1;
+                    break;
+                case Machine.LOADAop:
+                    addr = d + content(r);
+                    checkSpace(1);
+                    data[ST] = addr;
+                    ST = ST + 1;
+                    CP = CP + 1;
+                    break;
+                case Machine.LOADIop:
+                    ST = ST - 1;
+                    addr = data[ST];
+                    checkSpace(n);
+                    for (index = 0; index < n; index++)
+                        data[ST + index] = data[addr + index];
+                    ST = ST + n;
+                    CP = CP + 1;
+                    break;
+                case Machine.LOADLop:
+                    checkSpace(1);
+                    data[ST] = d;
+                    ST = ST + 1;
+                    CP = CP + 1;
+                    break;
+                case Machine.STOREop:
+                    addr = d + content(r);
+                    ST = ST - n;
+                    for (index = 0; index < n; index++)
+                        data[addr + index] = data[ST + index];
+                    CP = CP + 1;
+                    break;
+                case Machine.STOREIop:
+                    ST = ST - 1;
+                    addr = data[ST];
+                    ST = ST - n;
+                    for (index = 0; index < n; index++)
+                        data[addr + index] = data[ST + index];
+                    CP = CP + 1;
+                    break;
+                case Machine.CALLop:
+                    addr = d + content(r);
+                    if (addr >= Machine.PB) {
+                        callPrimitive(addr - Machine.PB);
+                        if (status == running)
+                            CP = CP + 1;
+                    } else {
+                        checkSpace(3);
+                        if ((0 <= n) && (n <= 15))
+                            data[ST] = content(n); // static link
+                        else
+                            status = failedInvalidInstruction;
+                        data[ST + 1] = LB; // dynamic link
+                        data[ST + 2] = CP + 1; // return address
+                        LB = ST;
+                        ST = ST + 3;
+                        CP = addr;
+                    }
+                    break;
+                case Machine.CALLIop:
+                    ST = ST - 2;
+                    addr = data[ST + 1];
+                    if (addr >= Machine.PB) {
+                        callPrimitive(addr - Machine.PB);
+                        if (status == running)
+                            CP = CP + 1;
+                    } else {
+                        // data[ST] = static link already
+                        data[ST + 1] = LB; // dynamic link
+                        data[ST + 2] = CP + 1; // return address
+                        LB = ST;
+                        ST = ST + 3;
+                        CP = addr;
+                    }
+                    break;
+                case Machine.RETURNop:
+                    addr = LB - d;
+                    CP = data[LB + 2];
+                    LB = data[LB + 1];
+                    ST = ST - n;
+                    for (index = 0; index < n; index++)
+                        data[addr + index] = data[ST + index];
+                    ST = addr + n;
+                    break;
+                case Machine.PUSHop:
+                    checkSpace(d);
+                    ST = ST + d;
+                    CP = CP + 1;
+                    break;
+                case Machine.POPop:
+                    addr = ST - n - d;
+                    ST = ST - n;
+                    for (index = 0; index < n; index++)
+                        data[addr + index] = data[ST + index];
+                    ST = addr + n;
+                    CP = CP + 1;
+                    break;
+                case Machine.JUMPop:
+                    CP = d + content(r);
+                    break;
+                case Machine.JUMPIop:
+                    ST = ST - 1;
+                    CP = data[ST];
+                    break;
+                case Machine.JUMPIFop:
+                    ST = ST - 1;
+                    if (data[ST] == n)
+                        CP = d + content(r);
+                    else
+                        CP = CP + 1;
+                    break;
+                case Machine.HALTop:
+                    status = halted;
+                    break;
+            }
+            if ((CP < CB) || (CP >= CT))
+                status = failedInvalidCodeAddress;
+        }
+    }
+
+
+    void interpretProgram() {
+        // Runs the program in the decoded code store.
+        // The registers CP, ST, LB and HT are held in locals for the duration
+        // of the loop, and are written back to the fields whenever
+        // code outside the loop (callPrimitive, dump) needs to see them.
+        // The program must have been verified: pushes are not checked for
+        // space, since each routine's whole frame is checked on entry, and
+        // CP is checked only where it is loaded from the data store.
+
+        int[] code = decodedCode;
+        int[] data = this.data;
+        int[] frameDepth = verifier.frameDepth;
+        int[] routineOf = verifier.routineOf;
+        int[] invocationCounts = jit.invocationCounts;
+        int[] backEdgeCounts = jit.backEdgeCounts;
+        int cp, st, lb, dp, ht, limit;
+        int pc, op, r, n, d, addr, index;
+        long result, count = 0;
+        // limit is the highest address the stack may reach in the frames
+        // entered so far; limits saves it across each active call
+        // every active frame holds at least its link data
+        int[] limits = new int[(HB - SB) / Machine.linkDataSize];
+        int calls = 0;
+        displays = new int[((HB - SB) / Machine.linkDataSize + 1) * displayStride];
+
+        // Initialize registers, unless resuming from a snapshot ...
+        if (restored) {
+            cp = CP;
+            st = ST;
+            lb = LB;
+            ht = HT;
+            calls = resumeFrames(limits);
+            dp = calls * displayStride;
+            limit = stackLimit;
+            stackPeak = Math.max(stackPeak, limit);
+            status = (calls < 0) ? failedInvalidCodeAddress : running;
+        } else {
+            cp = CB;
+            st = SB;
+            lb = SB;
+            dp = 0;
+            displays[0] = SB;
+            for (index = 1; index <= 6; index++)
+                displays[index] = unknownLink;
+            ht = loadConstants();
+            heap = new Heap(this);
+            limit = SB + frameDepth[CB];
+            stackPeak = limit;
+            status = running;
+            instructionCount = 0;
+            if (ht - st < frameDepth[CB])
+                status = failedDataStoreFull;
+        }
+        loop:
+        while (status == running) {
+            // Fetch and decode instruction ...
+            pc = cp * stride;
+            op = code[pc];
+            r = code[pc + 1];
+            n = code[pc + 2];
+            d = code[pc + 3];
+            count++;
+            // Execute instruction ...
+            switch (op) {
+                case Machine.LOADop:
+                    addr = d + content(r, cp, st, lb, dp, ht);
+                    copy(data, addr, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADAop:
+                    addr = d + content(r, cp, st, lb, dp, ht);
+                    data[st] = addr;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADIop:
+                    st = st - 1;
+                    addr = data[st];
+                    copy(data, addr, st, n);
+                    st = st + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.LOADLop:
+                    data[st] = d;
+                    st = st + 1;
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREop:
+                    addr = d + content(r, cp, st, lb, dp, ht);
+                    st = st - n;
+                    copy(data, st, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.STOREIop:
+                    st = st - 1;
+                    addr = data[st];
+                    st = st - n;
+                    copy(data, st, addr, n);
+                    cp = cp + 1;
+                    break;
+                case Machine.CALLop:
+                    addr = d + content(r, cp, st, lb, dp, ht);
+                    if (addr >= Machine.PB) {
+                        // a primitive not reached through PB
+                        ST = st;
+                        LB = lb;
+                        HT = ht;
+                        stackLimit = limit;
+                        callPrimitive(addr - Machine.PB);
+                        st = ST;
+                        ht = HT;
+                        if (status != running)
+                            break loop;
+                        cp = cp + 1;
+                    } else {
+                        if (ht - st < frameDepth[addr]) {
+                            ht = collectGarbage(st, lb, ht);
+                            if (ht - st < frameDepth[addr]) {
+                                status = failedDataStoreFull;
+                                break loop;
+                            }
+                        }
+                        data[st] = content(n, cp, st, lb, dp, ht); // static link
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        limits[calls++] = limit;
+                        limit = Math.max(limit, st + frameDepth[addr]);
+                        if (limit > stackPeak)
+                            stackPeak = limit;
+                        dp = dp + displayStride;
+                        enterDisplay(dp, st, n);
+                        lb = st;
+                        st = st + 3;
+                        cp = addr;
+                        if (++invocationCounts[addr] == Jit.invocationThreshold)
+                            jit.compile(addr);
+                        if (pollDue)
+                            poll(cp, st, lb, ht, count);
+                    }
+                    break;
+                case Machine.CALLIop:
+                    st = st - 2;
+                    addr = data[st + 1];
+                    if (addr >= Machine.PB) {
+                        ST = st;
+                        LB = lb;
+                        HT = ht;
+                        stackLimit = limit;
+                        callPrimitive(addr - Machine.PB);
+                        st = ST;
+                        ht = HT;
+                        if (status != running)
+                            break loop;
+                        cp = cp + 1;
+                    } else {
+                        if ((addr < CB) || (addr >= CT) || (frameDepth[addr] < 0)) {
+                            status = failedInvalidCodeAddress;
+                            break loop;
+                        }
+                        if (ht - st < frameDepth[addr]) {
+                            ht = collectGarbage(st, lb, ht);
+                            if (ht - st < frameDepth[addr]) {
+                                status = failedDataStoreFull;
+                                break loop;
+                            }
+                        }
+                        // data[st] = static link already
+                        data[st + 1] = lb; // dynamic link
+                        data[st + 2] = cp + 1; // return address
+                        limits[calls++] = limit;
+                        limit = Math.max(limit, st + frameDepth[addr]);
+                        if (limit > stackPeak)
+                            stackPeak = limit;
+                        dp = dp + displayStride;
+                        enterDisplay(dp, st, -1);
+                        lb = st;
+                        st = st + 3;
+                        cp = addr;
+                        if (++invocationCounts[addr] == Jit.invocationThreshold)
+                            jit.compile(addr);
+                        if (pollDue)
+                            poll(cp, st, lb, ht, count);
+                    }
+                    break;
+                case Machine.RETURNop:
+                    addr = lb - d;
+                    cp = data[lb + 2];
+                    lb = data[lb + 1];
+                    st = st - n;
+                    copy(data, st, addr, n);
+                    st = addr + n;
+                    limit = limits[--calls];
+                    dp = dp - displayStride;
+                    if ((cp < CB) || (cp >= CT)) {
+                        status = failedInvalidCodeAddress;
+                        break loop;
+                    }
+                    break;
+                case Machine.PUSHop:
+                    st = st + d;
+                    cp = cp + 1;
+                    break;
+                case Machine.POPop:
+                    addr = st - n - d;
+                    st = st - n;
+                    copy(data, st, addr, n);
+                    st = addr + n;
+                    cp = cp + 1;
+                    break;
+                case Machine.JUMPop:
+                    addr = d + content(r, cp, st, lb, dp, ht);
+                    if (addr <= cp) {
+                        if (++backEdgeCounts[routineOf[cp]] == Jit.backEdgeThreshold)
+                            jit.compile(routineOf[cp]);
+                        if (pollDue)
+                            poll(addr, st, lb, ht, count);
+                    }
+                    cp = addr;
+                    break;
+                case Machine.JUMPIop:
+                    st = st - 1;
+                    cp = data[st];
+                    if ((cp < CB) || (cp >= CT)) {
+                        status = failedInvalidCodeAddress;
+                        break loop;
+                    }
+                    break;
+                case Machine.JUMPIFop:
+                    st = st - 1;
+                    if (data[st] == n) {
+                        addr = d + content(r, cp, st, lb, dp, ht);
+                        if (addr <= cp) {
+                            if (++backEdgeCounts[routineOf[cp]] == Jit.backEdgeThreshold)
+                                jit.compile(routineOf[cp]);
+                            if (pollDue)
+                                poll(addr, st, lb, ht, count);
+                        }
+                        cp = addr;
+                    } else
+                        cp = cp + 1;
+                    break;
+                case Machine.HALTop:
+                    status = halted;
+                    break loop;
+                case idop:
+                    cp = cp + 1;
+                    break;
+                case notop:
+                    data[st - 1] = toInt(!isTrue(data[st - 1]));
+                    cp = cp + 1;
+                    break;
+                case andop:
+                    st = st - 1;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) & isTrue(data[st]));
+                    cp = cp + 1;
+                    break;
+                case orop:
+                    st = st - 1;
+                    data[st - 1] = toInt(isTrue(data[st - 1]) | isTrue(data[st]));
+                    cp = cp + 1;
+                    break;
+                case negop:
+                    data[st - 1] = -data[st - 1];
+                    cp = cp + 1;
+                    break;
+                case succop:
+                    result = (long) data[st - 1] + 1;
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    cp = cp + 1;
+                    break;
+                case predop:
+                    result = (long) data[st - 1] - 1;
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    cp = cp + 1;
+                    break;
+                case addop:
+                    st = st - 1;
+                    result = (long) data[st - 1] + data[st];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    cp = cp + 1;
+                    break;
+                case subop:
+                    st = st - 1;
+                    result = (long) data[st - 1] - data[st];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    cp = cp + 1;
+                    break;
+                case multop:
+                    st = st - 1;
+                    result = (long) data[st - 1] * data[st];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    cp = cp + 1;
+                    break;
+                case divop:
+                    st = st - 1;
+                    if (data[st] == 0) {
+                        status = failedZeroDivide;
+                        break loop;
+                    }
+                    data[st - 1] = data[st - 1] / data[st];
+                    cp = cp + 1;
+                    break;
+                case modop:
+                    st = st - 1;
+                    if (data[st] == 0) {
+                        status = failedZeroDivide;
+                        break loop;
+                    }
+                    data[st - 1] = data[st - 1] % data[st];
+                    cp = cp + 1;
+                    break;
+                case ltop:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] < data[st]);
+                    cp = cp + 1;
+                    break;
+                case leop:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] <= data[st]);
+                    cp = cp + 1;
+                    break;
+                case geop:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] >= data[st]);
+                    cp = cp + 1;
+                    break;
+                case gtop:
+                    st = st - 1;
+                    data[st - 1] = toInt(data[st - 1] > data[st]);
+                    cp = cp + 1;
+                    break;
+                case eqop:
+                case neop:
+                    index = data[st - 1]; // size of each comparand
+                    st = st - 2 * index;
+                    data[st - 1] = toInt(equal(index, st - 1, st - 1 + index) == (op == eqop));
+                    cp = cp + 1;
+                    break;
+                case rangecheckop:
+                    st = st - 2;
+                    if (!(data[st] <= data[st - 1] && data[st - 1] < data[st + 1])) {
+                        status = failedRangecheckError;
+                        break loop;
+                    }
+                    cp = cp + 1;
+                    break;
+                case eolop:
+                case eofop:
+                case getop:
+                case putop:
+                case geteolop:
+                case puteolop:
+                case getintop:
+                case putintop:
+                case newop:
+                case disposeop:
+                case fixedLexop:
+                case dynamicEqop:
+                case dynamicNeop:
+                case dynamicConcatop:
+                case dynamicLexop:
+                case regionBeginop:
+                case regionEndop:
+                case checkpointop:
+                    // primitives that do I/O or touch the heap; they may
+                    // wait for input, so all the registers are written back
+                    // for the monitor
+                    ST = st;
+                    LB = lb;
+                    HT = ht;
+                    stackLimit = limit;
+                    instructionCount = instructionCount + count;
+                    count = 0;
+                    callPrimitive(op - firstPrimitiveOp);
+                    st = ST;
+                    ht = HT;
+                    if (status != running)
+                        break loop;
+                    cp = cp + 1;
+                    break;
+                case countedLOADLaddop:
+                    fusionCounts[LOADLaddop - firstFusedOp]++;
+                    // fall through
+                case LOADLaddop:
+                    result = (long) data[st - 1] + d;
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    count = count + 1;
+                    cp = cp + 2;
+                    break;
+                case countedLOADLsubop:
+                    fusionCounts[LOADLsubop - firstFusedOp]++;
+                    // fall through
+                case LOADLsubop:
+                    result = (long) data[st - 1] - d;
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[st - 1] = (int) result;
+                    count = count + 1;
+                    cp = cp + 2;
+                    break;
+                case countedLOADLOADrelJUMPIFop:
+                case countedLOADLOADLrelJUMPIFop:
+                    op = op - firstCountedOp + firstFusedOp;
+                    fusionCounts[op - firstFusedOp]++;
+                    // fall through
+                case LOADLOADrelJUMPIFop:
+                case LOADLOADLrelJUMPIFop: {
+                    int left = data[d + content(r, cp, st, lb, dp, ht)];
+                    int right = (op == LOADLOADLrelJUMPIFop) ? code[pc + 7]
+                            : data[code[pc + 7] + content(code[pc + 5], cp, st, lb, dp, ht)];
+                    boolean holds;
+                    switch (code[pc + 11]) {
+                        case Machine.ltDisplacement:
+                            holds = left < right;
+                            break;
+                        case Machine.leDisplacement:
+                            holds = left <= right;
+                            break;
+                        case Machine.geDisplacement:
+                            holds = left >= right;
+                            break;
+                        default:
+                            holds = left > right;
+                            break;
+                    }
+                    count = count + 3;
+                    if (toInt(holds) == code[pc + 14]) {
+                        addr = code[pc + 15] + content(code[pc + 13], cp, st, lb, dp, ht);
+                        if (addr <= cp + 3) {
+                            if (++backEdgeCounts[routineOf[cp]] == Jit.backEdgeThreshold)
+                                jit.compile(routineOf[cp]);
+                            if (pollDue)
+                                poll(addr, st, lb, ht, count);
+                        }
+                        cp = addr;
+                    } else
+                        cp = cp + 4;
+                    break;
+                }
+                case countedLOADaddLOADIop:
+                    fusionCounts[LOADaddLOADIop - firstFusedOp]++;
+                    // fall through
+                case LOADaddLOADIop:
+                    result = (long) d + content(r, cp, st, lb, dp, ht) + data[st - 1];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    addr = (int) result;
+                    n = code[pc + 10];
+                    st = st - 1;
+                    copy(data, addr, st, n);
+                    st = st + n;
+                    count = count + 2;
+                    cp = cp + 3;
+                    break;
+                case countedLOADaddSTOREIop:
+                    fusionCounts[LOADaddSTOREIop - firstFusedOp]++;
+                    // fall through
+                case LOADaddSTOREIop:
+                    result = (long) d + content(r, cp, st, lb, dp, ht) + data[st - 1];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    addr = (int) result;
+                    n = code[pc + 10];
+                    st = st - 1 - n;
+                    copy(data, st, addr, n);
+                    count = count + 2;
+                    cp = cp + 3;
+                    break;
+                case countedLOADLOADLaddSTOREop:
+                    fusionCounts[LOADLOADLaddSTOREop - firstFusedOp]++;
+                    // fall through
+                case LOADLOADLaddSTOREop:
+                    result = (long) data[d + content(r, cp, st, lb, dp, ht)] + code[pc + 7];
+                    if ((result < -Machine.maxintRep) || (result > Machine.maxintRep)) {
+                        status = failedOverflow;
+                        break loop;
+                    }
+                    data[code[pc + 15] + content(code[pc + 13], cp, st, lb, dp, ht)] = (int) result;
+                    count = count + 3;
+                    cp = cp + 4;
+                    break;
+                case countedLOADLOADLLOADLrangecheckop:
+                    fusionCounts[LOADLOADLLOADLrangecheckop - firstFusedOp]++;
+                    // fall through
+                case LOADLOADLLOADLrangecheckop: {
+                    int value = data[d + content(r, cp, st, lb, dp, ht)];
+                    if (!(code[pc + 7] <= value && value < code[pc + 11])) {
+                        status = failedRangecheckError;
+                        break loop;
+                    }
+                    data[st] = value;
+                    st = st + 1;
+                    count = count + 3;
+                    cp = cp + 4;
+                    break;
+                }
+                case coverop:
+                    // the first time the instruction at cp is reached:
+                    // mark it, and the rest of its superinstruction, and put
+                    // its own op back
+                    op = probedOps[cp - CB];
+                    code[pc] = op;
+                    coverage.mark(cp, instructionsIn(op));
+                    count = count - 1;
+                    break;
+                case compiledop:
+                    // the routine has been compiled; it counts its own
+                    // instructions, including the one at cp
+                    ST = st;
+                    LB = lb;
+                    HT = ht;
+                    stackLimit = limit;
+                    displayBase = dp;
+                    cp = jit.compiledAt[cp].run(this, cp, st, lb);
+                    st = ST;
+                    ht = HT;
+                    count = count - 1;
+                    if (status != running)
+                        break loop;
+                    if (pollDue)
+                        poll(cp, st, lb, ht, count);
+                    break;
+                default:
+                    status = failedInvalidInstruction;
+                    break loop;
+            }
+        }
+
+        // Write back registers for showStatus and dump ...
+        CP = cp;
+        ST = st;
+        LB = lb;
+        HT = ht;
+        instructionCount = instructionCount + count;
+    }
+
+
+// DECODING
+
+    // Implementation notes:
+    // Before interpretation the code store is decoded into decodedCode, a flat
+    // int array with a fixed stride of four words per instruction, so that the
+    // dispatch loop fetches an instruction with plain array indexing instead
+    // of chasing a pointer into an Instruction object for each field. The
+    // instruction at code address a occupies words a*stride .. a*stride+3,
+    // holding its op, r, n and d fields in that order.
+
+    final static int
+            stride = 4;
+
+    int[] decodedCode;
+
+    // Calls of primitive routines through PB are decoded into opcodes of
+    // their own, one per primitive, so that the dispatch loop executes
+    // CALL PB+k with a single dispatch instead of computing the routine
+    // address and switching again in callPrimitive. The opcode of the
+    // primitive with displacement k is firstPrimitiveOp + k.
+
+    final static int
+            firstPrimitiveOp = 32,
+            idop = firstPrimitiveOp + Machine.idDisplacement,
+            notop = firstPrimitiveOp + Machine.notDisplacement,
+            andop = firstPrimitiveOp + Machine.andDisplacement,
+            orop = firstPrimitiveOp + Machine.orDisplacement,
+            succop = firstPrimitiveOp + Machine.succDisplacement,
+            predop = firstPrimitiveOp + Machine.predDisplacement,
+            negop = firstPrimitiveOp + Machine.negDisplacement,
+            addop = firstPrimitiveOp + Machine.addDisplacement,
+            subop = firstPrimitiveOp + Machine.subDisplacement,
+            multop = firstPrimitiveOp + Machine.multDisplacement,
+            divop = firstPrimitiveOp + Machine.divDisplacement,
+            modop = firstPrimitiveOp + Machine.modDisplacement,
+            ltop = firstPrimitiveOp + Machine.ltDisplacement,
+            leop = firstPrimitiveOp + Machine.leDisplacement,
+            geop = firstPrimitiveOp + Machine.geDisplacement,
+            gtop = firstPrimitiveOp + Machine.gtDisplacement,
+            eqop = firstPrimitiveOp + Machine.eqDisplacement,
+            neop = firstPrimitiveOp + Machine.neDisplacement,
+            eolop = firstPrimitiveOp + Machine.eolDisplacement,
+            eofop = firstPrimitiveOp + Machine.eofDisplacement,
+            getop = firstPrimitiveOp + Machine.getDisplacement,
+            putop = firstPrimitiveOp + Machine.putDisplacement,
+            geteolop = firstPrimitiveOp + Machine.geteolDisplacement,
+            puteolop = firstPrimitiveOp + Machine.puteolDisplacement,
+            getintop = firstPrimitiveOp + Machine.getintDisplacement,
+            putintop = firstPrimitiveOp + Machine.putintDisplacement,
+            newop = firstPrimitiveOp + Machine.newDisplacement,
+            disposeop = firstPrimitiveOp + Machine.disposeDisplacement,
+            rangecheckop = firstPrimitiveOp + Machine.rangecheckDisplacement,
+            fixedLexop = firstPrimitiveOp + Machine.fixedLexDisplacement,
+            dynamicEqop = firstPrimitiveOp + Machine.dynamicEqDisplacement,
+            dynamicNeop = firstPrimitiveOp + Machine.dynamicNeDisplacement,
+            dynamicConcatop = firstPrimitiveOp + Machine.dynamicConcatDisplacement,
+            dynamicLexop = firstPrimitiveOp + Machine.dynamicLexDisplacement,
+            regionBeginop = firstPrimitiveOp + Machine.regionBeginDisplacement,
+            regionEndop = firstPrimitiveOp + Machine.regionEndDisplacement,
+            checkpointop = firstPrimitiveOp + Machine.checkpointDisplacement,
+            lastPrimitiveOp = checkpointop;
+
+    void decodeProgram() {
+        // Decodes the instructions between CB and CT into decodedCode.
+
+        decodedCode = new int[(CT - CB) * stride];
+        for (int addr = CB; addr < CT; addr++) {
+            Instruction instr = code[addr];
+            int pc = (addr - CB) * stride;
+            if ((instr.op == Machine.CALLop) && (instr.r == Machine.PBr)
+                    && (instr.d > 0) && (instr.d <= lastPrimitiveOp - firstPrimitiveOp))
+                decodedCode[pc] = firstPrimitiveOp + instr.d;
+            else
+                decodedCode[pc] = instr.op;
+            decodedCode[pc + 1] = instr.r;
+            decodedCode[pc + 2] = instr.n;
+            decodedCode[pc + 3] = instr.d;
+        }
+    }
+
+
+// SUPERINSTRUCTIONS
+
+    // Implementation notes:
+    // After decoding, fuseInstructions scans the code store for short
+    // sequences that the encoder emits over and over, and writes an internal
+    // superinstruction opcode over the op field of the first instruction of
+    // each sequence found. The other fields of that instruction, and all of
+    // the following instructions of the sequence, are left untouched: the
+    // superinstruction takes its operands from them, and a jump into the
+    // middle of a fused sequence still finds the original instructions
+    // there. Superinstructions never appear in an object program.
+
+    final static int
+            firstFusedOp = 16,
+            LOADLaddop = 16,                  // LOADL k; CALL add
+            LOADLsubop = 17,                  // LOADL k; CALL sub
+            LOADLOADrelJUMPIFop = 18,         // LOAD (1); LOAD (1); CALL lt|le|ge|gt; JUMPIF
+            LOADLOADLrelJUMPIFop = 19,        // LOAD (1); LOADL k; CALL lt|le|ge|gt; JUMPIF
+            LOADaddLOADIop = 20,              // LOADA; CALL add; LOADI (n)
+            LOADaddSTOREIop = 21,             // LOADA; CALL add; STOREI (n)
+            LOADLOADLaddSTOREop = 22,         // LOAD (1); LOADL k; CALL add; STORE (1)
+            LOADLOADLLOADLrangecheckop = 23,  // LOAD (1); LOADL lo; LOADL hi; CALL rangecheck
+            lastFusedOp = 23;
+
+    final static String[] fusionNames = {
+            "LOADL; CALL add",
+            "LOADL; CALL sub",
+            "LOAD; LOAD; CALL rel; JUMPIF",
+            "LOAD; LOADL; CALL rel; JUMPIF",
+            "LOADA; CALL add; LOADI",
+            "LOADA; CALL add; STOREI",
+            "LOAD; LOADL; CALL add; STORE",
+            "LOAD; LOADL; LOADL; CALL rangecheck"
+    };
+
+    final static int[] fusionLengths = {2, 2, 4, 4, 3, 3, 4, 4};
+
+    // Each superinstruction also has a counted form, which counts an
+    // execution and falls through to it. Only a machine asked to count
+    // (by -fusion) has its sequences rewritten to the counted forms, so
+    // that no other run pays for the counts.
+
+    final static int
+            firstCountedOp = lastPrimitiveOp + 1,
+            countedLOADLaddop = firstCountedOp + LOADLaddop - firstFusedOp,
+            countedLOADLsubop = firstCountedOp + LOADLsubop - firstFusedOp,
+            countedLOADLOADrelJUMPIFop = firstCountedOp + LOADLOADrelJUMPIFop - firstFusedOp,
+            countedLOADLOADLrelJUMPIFop = firstCountedOp + LOADLOADLrelJUMPIFop - firstFusedOp,
+            countedLOADaddLOADIop = firstCountedOp + LOADaddLOADIop - firstFusedOp,
+            countedLOADaddSTOREIop = firstCountedOp + LOADaddSTOREIop - firstFusedOp,
+            countedLOADLOADLaddSTOREop = firstCountedOp + LOADLOADLaddSTOREop - firstFusedOp,
+            countedLOADLOADLLOADLrangecheckop = firstCountedOp + LOADLOADLLOADLrangecheckop - firstFusedOp,
+            lastCountedOp = countedLOADLOADLLOADLrangecheckop;
+
+    // whether fuseInstructions writes the counted forms
+    boolean countingFusion = false;
+
+    // number of sequences rewritten, and number of times each was executed
+    // by the decoded dispatch loop
+    int[] fusionSites = new int[lastFusedOp - firstFusedOp + 1];
+    long[] fusionCounts = new long[lastFusedOp - firstFusedOp + 1];
+
+    static int instructionsIn(int op) {
+        // Returns the number of instructions that the given decoded op
+        // executes: the length of its sequence if it is a superinstruction.
+        if ((op >= firstFusedOp) && (op <= lastFusedOp))
+            return fusionLengths[op - firstFusedOp];
+        if ((op >= firstCountedOp) && (op <= lastCountedOp))
+            return fusionLengths[op - firstCountedOp];
+        return 1;
+    }
+
+    boolean isPrimitiveCall(int addr, int displacement) {
+        // Tests whether the instruction at addr calls the given primitive.
+        Instruction instr = code[addr];
+        return (instr.op == Machine.CALLop) && (instr.r == Machine.PBr)
+                && (instr.d == displacement);
+    }
+
+    boolean isRelationCall(int addr) {
+        // Tests whether the instruction at addr calls lt, le, ge or gt.
+        return isPrimitiveCall(addr, Machine.ltDisplacement)
+                || isPrimitiveCall(addr, Machine.leDisplacement)
+                || isPrimitiveCall(addr, Machine.geDisplacement)
+                || isPrimitiveCall(addr, Machine.gtDisplacement);
+    }
+
+    boolean isWordLoad(int addr) {
+        // Tests whether the instruction at addr loads a single word whose
+        // address does not depend on the value of ST.
+        Instruction instr = code[addr];
+        return (instr.op == Machine.LOADop) && (instr.n == 1)
+                && (instr.r != Machine.STr) && (instr.r != Machine.CPr);
+    }
+
+    boolean isWordStore(int addr) {
+        // Tests whether the instruction at addr stores a single word at an
+        // address that does not depend on the value of ST.
+        Instruction instr = code[addr];
+        return (instr.op == Machine.STOREop) && (instr.n == 1)
+                && (instr.r != Machine.STr) && (instr.r != Machine.CPr);
+    }
+
+    boolean hasOp(int addr, int op) {
+        return code[addr].op == op;
+    }
+
+    int matchFusion(int addr) {
+        // Returns the superinstruction opcode for the longest sequence
+        // starting at addr, or -1 if no sequence starts there.
+
+        int left = CT - addr;
+        if (left >= 4) {
+            if (isWordLoad(addr) && isWordLoad(addr + 1) && isRelationCall(addr + 2)
+                    && hasOp(addr + 3, Machine.JUMPIFop))
+                return LOADLOADrelJUMPIFop;
+            if (isWordLoad(addr) && hasOp(addr + 1, Machine.LOADLop) && isRelationCall(addr + 2)
+                    && hasOp(addr + 3, Machine.JUMPIFop))
+                return LOADLOADLrelJUMPIFop;
+            if (isWordLoad(addr) && hasOp(addr + 1, Machine.LOADLop)
+                    && isPrimitiveCall(addr + 2, Machine.addDisplacement) && isWordStore(addr + 3))
+                return LOADLOADLaddSTOREop;
+            if (isWordLoad(addr) && hasOp(addr + 1, Machine.LOADLop) && hasOp(addr + 2, Machine.LOADLop)
+                    && isPrimitiveCall(addr + 3, Machine.rangecheckDisplacement))
+                return LOADLOADLLOADLrangecheckop;
+        }
+        if (left >= 3) {
+            if (hasOp(addr, Machine.LOADAop) && (code[addr].r != Machine.STr)
+                    && isPrimitiveCall(addr + 1, Machine.addDisplacement)) {
+                if (hasOp(addr + 2, Machine.LOADIop))
+                    return LOADaddLOADIop;
+                if (hasOp(addr + 2, Machine.STOREIop))
+                    return LOADaddSTOREIop;
+            }
+        }
+        if (left >= 2 && hasOp(addr, Machine.LOADLop)) {
+            if (isPrimitiveCall(addr + 1, Machine.addDisplacement))
+                return LOADLaddop;
+            if (isPrimitiveCall(addr + 1, Machine.subDisplacement))
+                return LOADLsubop;
+        }
+        return -1;
+    }
+
+    void fuseInstructions() {
+        // Rewrites the decoded code store to use superinstructions.
+
+        int addr = CB;
+        while (addr < CT) {
+            int op = matchFusion(addr);
+            if (op < 0)
+                addr = addr + 1;
+            else {
+                decodedCode[(addr - CB) * stride] = countingFusion
+                        ? op - firstFusedOp + firstCountedOp : op;
+                fusionSites[op - firstFusedOp]++;
+                addr = addr + fusionLengths[op - firstFusedOp];
+            }
+        }
+    }
+
+    void showFusion() {
+        // Writes the superinstruction table, with the number of places each
+        // superinstruction was fused and the number of times it was executed.
+        // Compiled routines and the reference loop execute none.
+        out.println("");
+        out.println("Superinstructions:");
+        for (int i = 0; i < fusionNames.length; i++)
+            out.println(String.format("  %-38s %6d sites %14d executions",
+                    fusionNames[i], fusionSites[i], fusionCounts[i]));
+    }
+
+
+// COMPILATION
+
+    // Once a routine has been compiled (see Jit), each address at which its
+    // compiled code can be entered is rewritten in the decoded code store to
+    // compiledop, which runs the compiled code from that address. As with
+    // superinstructions, only the op field is overwritten.
+
+    final static int
+            compiledop = 24;
+
+
+// COVERAGE
+
+    // Implementation notes:
+    // Coverage is recorded in the decoded dispatch loop by probes: before
+    // the program starts, the op field of every instruction is saved in
+    // probedOps and overwritten with coverop. The first time the loop
+    // reaches an address, the probe marks it as covered and puts its op
+    // back, so each instruction pays for one extra dispatch in the whole
+    // run and the loop then runs exactly as it would without coverage.
+    // A routine compiled by the JIT marks each basic block as it runs it,
+    // but only the blocks that had not all been covered when it was
+    // compiled (see Translator). The reference loop marks every
+    // instruction.
+
+    final static int
+            coverop = 25;
+
+    int[] probedOps;
+
+    void insertProbes() {
+        // Writes a probe over every instruction of the decoded code store.
+        probedOps = new int[CT - CB];
+        for (int addr = CB; addr < CT; addr++) {
+            probedOps[addr - CB] = decodedCode[(addr - CB) * stride];
+            decodedCode[(addr - CB) * stride] = coverop;
+        }
+    }
+
+
+// LOADING
+
+    // A file is read through a memory-mapped buffer and decoded straight
+    // from it into code store (see ObjectFile).
+
+    public void loadObjectProgram(String objectName) {
+        // Loads the TAM object program into code store from the named file.
+
+        Events.ProgramLoad event = new Events.ProgramLoad();
+        event.begin();
+        try {
+            useObjectProgram(ObjectFile.load(objectName, code));
+            programName = objectName;
+            loaded(event);
+        } catch (IOException s) {
+            CT = CB;
+            System.err.println("Error reading object file: " + s);
+        }
+    }
+
+    public void readObjectProgram(InputStream objectFile) throws IOException {
+        // Loads the TAM object program into code store from the given stream.
+
+        Events.ProgramLoad event = new Events.ProgramLoad();
+        event.begin();
+        useObjectProgram(ObjectFile.read(ByteBuffer.wrap(objectFile.readAllBytes()), code));
+        loaded(event);
+    }
+
+    private void useObjectProgram(ObjectFile program) throws IOException {
+        // Takes the constants of a program just read into code store.
+
+        if (program.entry != CB)
+            throw new IOException("unsupported entry address " + program.entry);
+        if (program.dataSize > HB - SB)
+            throw new IOException("program needs a data store of at least "
+                    + program.dataSize + " words");
+        CT = CB + program.codeSize;
+        constants = program.constants;
+        relocations = program.relocations;
+        debugInfo = (program.debugInfo == null) ? null : DebugInfo.fromBytes(program.debugInfo);
+    }
+
+    private void loaded(Events.ProgramLoad event) {
+        // Records the flight recorder event of a program just loaded.
+        event.program = programName;
+        event.codeSize = CT - CB;
+        event.constants = constants.length;
+        event.debugTable = (debugInfo != null);
+        event.commit();
+    }
+
+    int loadConstants() {
+        // Copies the constants to the top of the data store, relocating the
+        // addresses among them, and returns the address below them, the
+        // initial value of HT; if that is below SB, they do not fit.
+
+        int base = HB - constants.length;
+        if (base < SB)
+            return base;
+        System.arraycopy(constants, 0, data, base, constants.length);
+        for (int displacement : relocations)
+            data[HB + displacement] = data[HB + displacement] + HB;
+        return base;
+    }
+
+
+// SNAPSHOTS
+
+    // Implementation notes:
+    // A snapshot is written when the program calls the checkpoint
+    // primitive and snapshotName is set. The machine stops at the call, as
+    // it would on a failure, so that CP, ST, LB and HT are all written back
+    // whichever loop or compiled routine was running, and run() then saves
+    // everything a machine needs to carry on from the next instruction: the
+    // code store, the constant segment, the registers, the stack (SB to
+    // ST) and the heap (HT to HB) with the allocator's bookkeeping, the
+    // character last read, and the number of bytes read and written so
+    // far. The space between ST and HT is not saved. All numbers are
+    // written as big-endian ints, as in an object file.
+    //
+    // A restored machine reads its input from the stream it is given, so a
+    // job resuming from a snapshot supplies only the input that follows
+    // what the program read before the checkpoint.
+    //
+    // A snapshot is read through a memory-mapped buffer, so restoring costs
+    // little more than copying the stack and heap into the data store. The
+    // decoded dispatch loop keeps state of its own for the active frames,
+    // the displays and saved stack limits, and rebuilds it from the static
+    // and dynamic links on resuming (see resumeFrames); the JIT starts
+    // afresh.
+
+    final static int
+            snapshotMagic = 0x54414D53,     // "TAMS"
+            snapshotVersion = 1;
+
+    // set when the registers and stores have been restored from a snapshot,
+    // so that run() resumes rather than starts the program
+    boolean restored = false;
+
+    void writeSnapshot(String snapshotName) throws IOException {
+        DataOutputStream snapshot = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(snapshotName)));
+        try {
+            snapshot.writeInt(snapshotMagic);
+            snapshot.writeInt(snapshotVersion);
+            snapshot.writeInt(HB - SB);
+            snapshot.writeInt(CT);
+            for (int addr = CB; addr < CT; addr++)
+                code[addr].write(snapshot);
+            snapshot.writeInt(constants.length);
+            for (int word : constants)
+                snapshot.writeInt(word);
+            snapshot.writeInt(relocations.length);
+            for (int displacement : relocations)
+                snapshot.writeInt(displacement);
+            snapshot.writeInt(CP);
+            snapshot.writeInt(ST);
+            snapshot.writeInt(HT);
+            snapshot.writeInt(LB);
+            snapshot.writeInt(stackLimit);
+            snapshot.writeInt(currentChar);
+            snapshot.writeLong(instructionCount);
+            snapshot.writeLong(io.bytesRead);
+            snapshot.writeLong(io.bytesWritten);
+            for (int addr = SB; addr < ST; addr++)
+                snapshot.writeInt(data[addr]);
+            for (int addr = HT; addr < HB; addr++)
+                snapshot.writeInt(data[addr]);
+            heap.save(snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Creates a machine in the state saved in the named snapshot, ready to
+     * resume the program when run. The data store is the size it was
+     * when the snapshot was taken.
+     *
+     * @throws IOException if the file cannot be read or is not a valid
+     *                     snapshot.
+     */
+    public static TamVM restoreSnapshot(String snapshotName, ProgramIO io, PrintStream out)
+            throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(snapshotName));
+        try {
+            ByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if ((snapshot.getInt() != snapshotMagic) || (snapshot.getInt() != snapshotVersion))
+                throw new IOException("not a TAM snapshot");
+            TamVM vm;
+            try {
+                vm = new TamVM(io, out, snapshot.getInt());
+            } catch (IllegalArgumentException s) {
+                throw new IOException(s.getMessage());
+            }
+            vm.readSnapshot(snapshot);
+            vm.programName = snapshotName;
+            return vm;
+        } catch (BufferUnderflowException s) {
+            throw new IOException("snapshot is truncated");
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void readSnapshot(ByteBuffer snapshot) throws IOException {
+        CT = snapshot.getInt();
+        if ((CT <= CB) || (CT > Machine.PB))
+            throw new IOException("invalid code size " + CT);
+        for (int addr = CB; addr < CT; addr++) {
+            Instruction instr = new Instruction();
+            instr.op = snapshot.getInt();
+            instr.r = snapshot.getInt();
+            instr.n = snapshot.getInt();
+            instr.d = snapshot.getInt();
+            code[addr] = instr;
+        }
+        int size = snapshot.getInt();
+        if ((size < 0) || (size > HB - SB))
+            throw new IOException("invalid constant segment size " + size);
+        constants = new int[size];
+        snapshot.asIntBuffer().get(constants);
+        snapshot.position(snapshot.position() + 4 * size);
+        int count = snapshot.getInt();
+        if ((count < 0) || (count > size))
+            throw new IOException("invalid relocation count " + count);
+        relocations = new int[count];
+        snapshot.asIntBuffer().get(relocations);
+        snapshot.position(snapshot.position() + 4 * count);
+
+        CP = snapshot.getInt();
+        ST = snapshot.getInt();
+        HT = snapshot.getInt();
+        LB = snapshot.getInt();
+        stackLimit = snapshot.getInt();
+        if ((CP < CB) || (CP >= CT) || (ST < SB) || (HT < ST) || (HT > HB - size)
+                || (LB < SB) || (LB > ST) || (stackLimit < SB) || (stackLimit > HB))
+            throw new IOException("invalid registers");
+        currentChar = snapshot.getInt();
+        instructionCount = snapshot.getLong();
+        io.bytesRead = snapshot.getLong();
+        io.bytesWritten = snapshot.getLong();
+
+        // the stack and the heap, in bulk
+        snapshot.asIntBuffer().get(data, SB, ST - SB);
+        snapshot.position(snapshot.position() + 4 * (ST - SB));
+        snapshot.asIntBuffer().get(data, HT, HB - HT);
+        snapshot.position(snapshot.position() + 4 * (HB - HT));
+        heap = new Heap(this);
+        heap.restore(snapshot);
+        restored = true;
+    }
+
+    int resumeFrames(int[] limits) {
+        // Rebuilds the displays and the saved stack limits of the frames
+        // active at CP, as the calls that made those frames would have
+        // left them, and returns the number of calls active, or -1 if the
+        // links are not valid.
+
+        int[] frameDepth = verifier.frameDepth;
+        int[] routineOf = verifier.routineOf;
+        int calls = 0;
+        for (int c = CP, l = LB; routineOf[c] != CB; c = data[l + 2], l = data[l + 1]) {
+            if ((calls == limits.length) || (l < SB) || (l + 2 >= ST)
+                    || (data[l + 2] < CB) || (data[l + 2] >= CT))
+                return -1;
+            calls++;
+        }
+        // the frame of each call, and the routine it runs, from the bottom up
+        int[] bases = new int[calls + 1], routines = new int[calls + 1];
+        bases[0] = SB;
+        routines[0] = CB;
+        for (int k = calls, c = CP, l = LB; k > 0; k--, c = data[l + 2], l = data[l + 1]) {
+            bases[k] = l;
+            routines[k] = routineOf[c];
+        }
+        int limit = SB + frameDepth[CB];
+        for (int k = 0; k <= calls; k++) {
+            if (k > 0) {
+                limits[k - 1] = limit;
+                limit = Math.max(limit, bases[k] + frameDepth[routines[k]]);
+            }
+            int dp = k * displayStride;
+            displays[dp] = bases[k];
+            for (int j = 1; j <= 6; j++)
+                displays[dp + j] = unknownLink;
+        }
+        return calls;
+    }
+
+
+// RUNNING
+
+    boolean verify() {
+        // Verifies the program in code store, recording the verifier's
+        // tables for the dispatch loop and the JIT.
+        verifier = new Verifier();
+        return verifier.verify(code, CT);
+    }
+
+    void flushOutput() {
+        // Writes out the program's buffered output, once it has halted or
+        // failed.
+        try {
+            io.flush();
+        } catch (IOException s) {
+            if (status == halted)
+                status = failedIOError;
+        }
+    }
+
+    /**
+     * Runs the program in code store to completion. A program that cannot
+     * be verified is run with run-time checks by the reference loop.
+     */
+    public void run() {
+        Events.Run event = new Events.Run();
+        event.begin();
+        if (profileName != null) {
+            profile = new Profile(this);
+            reference = true;
+        }
+        if (profilingAllocations) {
+            allocationProfile = new AllocationProfile(this);
+            reference = true;
+        }
+        if (coverageName != null)
+            coverage = new Coverage(CT - CB, Coverage.checksum(code, CT - CB));
+        if (!reference && !verify()) {
+            System.err.println("Object program not verified (" + verifier.error
+                    + "); running with run-time checks.");
+            reference = true;
+        }
+        if (samplesName != null) {
+            sampler = new Sampler(this);
+            sampler.start();
+        }
+        if (monitoring) {
+            monitor = new Monitor(this);
+            monitor.register();
+        }
+        try {
+            if (reference)
+                interpretReference();
+            else {
+                decodeProgram();
+                if (fusing)
+                    fuseInstructions();
+                if (coverage != null)
+                    insertProbes();
+                jit.initialize(CT);
+                if (compilingAll)
+                    jit.compileAll();
+                interpretProgram();
+            }
+        } finally {
+            flushOutput();
+            if (sampler != null)
+                sampler.stop();
+            if (monitor != null)
+                monitor.unregister();
+        }
+        if (status == failedDataStoreFull)
+            dataStoreFull();
+        if (coverage != null) {
+            try {
+                coverage.save(coverageName);
+            } catch (IOException s) {
+                System.err.println("Error writing coverage: " + s);
+            }
+        }
+        if (sampler != null) {
+            try {
+                sampler.save(samplesName);
+            } catch (IOException s) {
+                System.err.println("Error writing samples: " + s);
+            }
+        }
+        if (profile != null) {
+            profile.finish();
+            try {
+                profile.save(profileName);
+            } catch (IOException s) {
+                System.err.println("Error writing profile: " + s);
+            }
+        }
+        if (status == checkpointed) {
+            CP = CP + 1;                // resume after the call
+            try {
+                writeSnapshot(snapshotName);
+            } catch (IOException s) {
+                System.err.println("Error writing snapshot: " + s);
+                status = failedIOError;
+            }
+        }
+        event.program = programName;
+        event.status = Monitor.statusName(status);
+        event.instructions = instructionCount;
+        event.allocations = heap.allocations;
+        event.reference = reference;
+        event.commit();
+    }
+
+    private void dataStoreFull() {
+        // Records the flight recorder event of a program that has run out
+        // of data store.
+        Events.DataStoreFull event = new Events.DataStoreFull();
+        event.program = programName;
+        event.address = CP;
+        event.stackDepth = ST - SB;
+        event.heapDepth = HB - HT;
+        event.heapInUse = heap.inUse;
+        event.collections = heap.collections;
+        event.commit();
+    }
+
+    /**
+     * Returns 0 if the program halted normally or was checkpointed, and
+     * otherwise the status value that says why it failed.
+     */
+    public int exitStatus() {
+        return ((status == halted) || (status == checkpointed)) ? 0 : status;
+    }
+}
@@ -0,0 +1,50 @@
+package TAM;
+
+/**
+ * The figures a running TAM machine publishes through JMX (see Monitor).
+ * Reading a figure makes the machine publish them at its next routine
+ * entry or backward jump, and waits for it, so each read sees the machine
+ * as it is.
+ */
+
+public interface TamVMMXBean {
+
+    /**
+     * Returns the name of the object file or snapshot the program came from.
+     */
+    String getProgram();
+
+    /**
+     * Returns "running", "halted", or the reason the program failed.
+     */
+    String getStatus();
+
+    long getInstructionsExecuted();
+
+    /**
+     * Returns the number of words on the stack, ST - SB.
+     */
+    int getStackDepth();
+
+    /**
+     * Returns the number of words in the heap and the constants, HB - HT.
+     */
+    int getHeapDepth();
+
+    /**
+     * Returns the greatest stack depth reached so far. A program run by the
+     * decoded dispatch loop is not checked at each push, so this is the
+     * greatest depth its verified frames allowed.
+     */
+    int getStackHighWater();
+
+    /**
+     * Returns the most words that have been in allocated heap blocks at
+     * once.
+     */
+    int getHeapHighWater();
+
+    long getAllocations();
+
+    int getDataStoreSize();
+}
@@ -0,0 +1,727 @@
+package TAM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Translates TAM routines into Java classes, so that hot routines can be
+ * run as JVM bytecode instead of being interpreted.
+ * <p>
+ * The code of a routine is every instruction reachable from its entry
+ * without entering another routine. Each TAM instruction is translated
+ * into the JVM instructions that perform it on the data store, with its
+ * operands folded in as constants; jumps become JVM branches, so each
+ * basic block becomes straight-line JVM code that HotSpot can optimise.
+ * CALL, CALLI, RETURN, JUMPI and HALT are left to the interpreter: the
+ * compiled code returns the address of such an instruction, and the
+ * interpreter executes it and so keeps control of the frame layout.
+ * <p>
+ * A compiled routine can be entered at its entry, just after each of its
+ * calls, and at each target of a backward jump, so that the interpreter
+ * can switch to it on the next call, on return from a call, or in the
+ * middle of a loop. A backward jump taken while the machine's pollDue flag
+ * is set returns the target's address instead, so that the interpreter
+ * polls (see TamVM.poll) at the loop heads of compiled code as it does at
+ * those of interpreted code, and then comes straight back.
+ */
+
+final class Translator {
+
+    // locals of the generated run method
+    private final static int
+            VMlocal = 1, CPlocal = 2, STlocal = 3, LBlocal = 4, DATAlocal = 5,
+            COUNTlocal = 6, RESULTlocal = 8, ADDRlocal = 10, DPlocal = 11,
+            maxLocals = 12, maxStack = 12;
+
+    private final static String
+            machine = "TAM/TamVM",
+            helpers = "TAM/CompiledRoutine";
+
+    /**
+     * The code addresses at which the routine last translated can be
+     * entered.
+     */
+    int[] resumable;
+
+    private final Instruction[] code;
+    private final int CT;
+    private final int[] argsSize;
+
+    // the coverage of the program so far, or null if it is not recorded
+    private final Coverage coverage;
+    private boolean[] inRoutine, isEntry, isLeader;
+    private ClassFile classFile;
+    private ClassFile.Code m;
+    private int[] labels;
+    private int exitLabel;
+
+    // for each target of a backward jump, the label of the code that
+    // tests pollDue before going there, or -1
+    private int[] pollLabels;
+
+    // the address just past the last instruction counted on entry to the
+    // current basic block
+    private int blockEnd;
+
+    // the first address of the current basic block if it must mark its
+    // instructions as covered, or -1
+    private int coverFrom = -1;
+
+    // failure stubs: label, code address, status (or -1 if already set),
+    // the number of instructions counted but not executed, and the first
+    // address and number of the instructions to mark as covered
+    private ArrayList<int[]> failures;
+
+    /**
+     * Prepares to translate routines of the verified program in the code
+     * store of the given machine.
+     */
+    Translator(TamVM vm) {
+        code = vm.code;
+        CT = vm.CT;
+        argsSize = vm.verifier.argsSize;
+        coverage = vm.coverage;
+    }
+
+    static boolean isExit(Instruction instr) {
+        // Tests whether the instruction is left to the interpreter.
+        switch (instr.op) {
+            case Machine.CALLop:
+                return instr.r != Machine.PBr;
+            case Machine.CALLIop:
+            case Machine.RETURNop:
+            case Machine.JUMPIop:
+            case Machine.HALTop:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean returns(Instruction instr) {
+        // Tests whether control can come back to the instruction after a
+        // call.
+        if ((instr.op == Machine.CALLop) && (instr.r == Machine.CBr)
+                && (instr.d < argsSize.length))
+            return argsSize[instr.d] >= 0;
+        return true;
+    }
+
+    private void findRoutine(int entry) {
+        // Marks the instructions of the routine, its entry points and the
+        // first instruction of each basic block.
+
+        inRoutine = new boolean[CT];
+        isEntry = new boolean[CT];
+        isLeader = new boolean[CT];
+        ArrayList<Integer> work = new ArrayList<Integer>();
+
+        work.add(entry);
+        isEntry[entry] = true;
+        isLeader[entry] = true;
+        while (!work.isEmpty()) {
+            int addr = work.remove(work.size() - 1);
+            if ((addr < Machine.CB) || (addr >= CT) || inRoutine[addr])
+                continue;
+            inRoutine[addr] = true;
+            Instruction instr = code[addr];
+            switch (instr.op) {
+                case Machine.JUMPop:
+                    if (instr.r == Machine.CBr) {
+                        work.add(instr.d);
+                        markTarget(addr, instr.d);
+                    }
+                    break;
+                case Machine.JUMPIFop:
+                    if (instr.r == Machine.CBr) {
+                        work.add(instr.d);
+                        markTarget(addr, instr.d);
+                    }
+                    work.add(addr + 1);
+                    if (addr + 1 < CT)
+                        isLeader[addr + 1] = true;
+                    break;
+                case Machine.CALLop:
+                case Machine.CALLIop:
+                    if ((instr.op == Machine.CALLop) && (instr.r == Machine.PBr))
+                        work.add(addr + 1);
+                    else if (returns(instr) && (addr + 1 < CT)) {
+                        work.add(addr + 1);
+                        isEntry[addr + 1] = true;
+                        isLeader[addr + 1] = true;
+                    }
+                    break;
+                case Machine.RETURNop:
+                case Machine.JUMPIop:
+                case Machine.HALTop:
+                    break;
+                default:
+                    work.add(addr + 1);
+                    break;
+            }
+        }
+        // an instruction left to the interpreter cannot be an entry, since
+        // entering there would make no progress
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (isEntry[addr] && (!inRoutine[addr] || isExit(code[addr])))
+                isEntry[addr] = false;
+    }
+
+    private void markTarget(int from, int to) {
+        if ((to >= Machine.CB) && (to < CT)) {
+            isLeader[to] = true;
+            if (to <= from)
+                isEntry[to] = true;     // the head of a loop
+        }
+    }
+
+    private int blockLength(int addr) {
+        // Returns the number of instructions executed in compiled code by
+        // the basic block that starts at addr.
+        int length = 0;
+        do {
+            Instruction instr = code[addr];
+            if (isExit(instr))
+                break;
+            length++;
+            if ((instr.op == Machine.JUMPop) || (instr.op == Machine.JUMPIFop))
+                break;
+            addr++;
+        } while ((addr < CT) && inRoutine[addr] && !isLeader[addr]);
+        return length;
+    }
+
+
+// CODE GENERATION
+
+    private int fail(int addr, int status) {
+        int label = m.newLabel();
+        int covered = ((coverFrom >= 0) && (addr < blockEnd - 1)) ? addr - coverFrom + 1 : 0;
+        failures.add(new int[]{label, addr, status, Math.max(blockEnd - addr - 1, 0), coverFrom, covered});
+        return label;
+    }
+
+    private void emitCover(int addr, int length) {
+        // Marks the given number of instructions from addr as covered.
+        m.load(ClassFile.ALOAD, VMlocal);
+        m.iconst(addr);
+        m.iconst(length);
+        helper("cover", "(L" + machine + ";II)V");
+    }
+
+    private void getfield(String name, String desc) {
+        // Pushes the named field of the machine.
+        m.load(ClassFile.ALOAD, VMlocal);
+        m.ref(ClassFile.GETFIELD, classFile.fieldRef(machine, name, desc));
+    }
+
+    private void putfield(String name, String desc) {
+        // Stores into the named field of the machine, given the machine
+        // and the value on the stack.
+        m.ref(ClassFile.PUTFIELD, classFile.fieldRef(machine, name, desc));
+    }
+
+    private void helper(String name, String desc) {
+        m.ref(ClassFile.INVOKESTATIC, classFile.methodRef(helpers, name, desc));
+    }
+
+    private static boolean isConstant(int r) {
+        // Tests whether register r has the same value throughout a run.
+        // HB is not folded, since a class compiled ahead of time may be
+        // run on a data store of another size.
+        switch (r) {
+            case Machine.CBr:
+            case Machine.CTr:
+            case Machine.PBr:
+            case Machine.PTr:
+            case Machine.SBr:
+            case Machine.CPr:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int constant(int r, int addr) {
+        switch (r) {
+            case Machine.CBr:
+                return TamVM.CB;
+            case Machine.CTr:
+                return CT;
+            case Machine.PBr:
+                return Machine.PB;
+            case Machine.PTr:
+                return Machine.PT;
+            case Machine.SBr:
+                return TamVM.SB;
+            default:
+                return addr;            // CP
+        }
+    }
+
+    private void emitAddress(int r, int d, int addr) {
+        // Pushes d + content(r).
+        if (isConstant(r)) {
+            m.iconst(d + constant(r, addr));
+            return;
+        }
+        if (r == Machine.STr)
+            m.load(ClassFile.ILOAD, STlocal);
+        else if (r == Machine.HTr)
+            getfield("HT", "I");
+        else if (r == Machine.HBr)
+            getfield("HB", "I");
+        else if (r == Machine.LBr)
+            m.load(ClassFile.ILOAD, LBlocal);
+        else if (r == Machine.L1r) {
+            m.load(ClassFile.ALOAD, DATAlocal);
+            m.load(ClassFile.ILOAD, LBlocal);
+            m.op(ClassFile.IALOAD);
+        } else {
+            // L2 .. L6 come from the interpreter's display
+            m.load(ClassFile.ALOAD, VMlocal);
+            m.load(ClassFile.ILOAD, DPlocal);
+            m.iconst(r - Machine.LBr);
+            m.load(ClassFile.ILOAD, LBlocal);
+            m.ref(ClassFile.INVOKEVIRTUAL, classFile.methodRef(machine, "display", "(III)I"));
+        }
+        if (d != 0) {
+            m.iconst(d);
+            m.op(ClassFile.IADD);
+        }
+    }
+
+    private void emitIndex(int offset) {
+        // Pushes data, st + offset.
+        m.load(ClassFile.ALOAD, DATAlocal);
+        m.load(ClassFile.ILOAD, STlocal);
+        if (offset != 0) {
+            m.iconst(offset);
+            m.op(ClassFile.IADD);
+        }
+    }
+
+    private void emitWord(int offset) {
+        // Pushes data[st + offset].
+        emitIndex(offset);
+        m.op(ClassFile.IALOAD);
+    }
+
+    private void emitCopy(int n) {
+        // Copies n words, given data, from and to on the stack.
+        m.iconst(n);
+        helper("copy", "([IIII)V");
+    }
+
+    private void emitChecked(int addr) {
+        // Stores the long result at data[st - 1], failing if it overflows.
+        m.load(ClassFile.LSTORE, RESULTlocal);
+        m.load(ClassFile.LLOAD, RESULTlocal);
+        helper("overflows", "(J)Z");
+        m.jump(ClassFile.IFNE, fail(addr, TamVM.failedOverflow));
+        emitIndex(-1);
+        m.load(ClassFile.LLOAD, RESULTlocal);
+        m.op(ClassFile.L2I);
+        m.op(ClassFile.IASTORE);
+    }
+
+    private void emitBinary(String name) {
+        // Replaces the top two words by the result of a helper.
+        m.iinc(STlocal, -1);
+        emitIndex(-1);
+        m.op(ClassFile.DUP2);
+        m.op(ClassFile.IALOAD);
+        emitWord(0);
+        helper(name, "(II)I");
+        m.op(ClassFile.IASTORE);
+    }
+
+    private void emitPrimitive(int d, int addr) {
+        switch (d) {
+            case Machine.idDisplacement:
+                break;
+            case Machine.notDisplacement:
+                emitIndex(-1);
+                m.op(ClassFile.DUP2);
+                m.op(ClassFile.IALOAD);
+                helper("not", "(I)I");
+                m.op(ClassFile.IASTORE);
+                break;
+            case Machine.andDisplacement:
+                emitBinary("and");
+                break;
+            case Machine.orDisplacement:
+                emitBinary("or");
+                break;
+            case Machine.ltDisplacement:
+                emitBinary("lt");
+                break;
+            case Machine.leDisplacement:
+                emitBinary("le");
+                break;
+            case Machine.geDisplacement:
+                emitBinary("ge");
+                break;
+            case Machine.gtDisplacement:
+                emitBinary("gt");
+                break;
+            case Machine.negDisplacement:
+                emitIndex(-1);
+                m.op(ClassFile.DUP2);
+                m.op(ClassFile.IALOAD);
+                m.op(ClassFile.INEG);
+                m.op(ClassFile.IASTORE);
+                break;
+            case Machine.succDisplacement:
+            case Machine.predDisplacement:
+                emitWord(-1);
+                m.op(ClassFile.I2L);
+                m.op(10);               // lconst_1
+                m.op(d == Machine.succDisplacement ? ClassFile.LADD : ClassFile.LSUB);
+                emitChecked(addr);
+                break;
+            case Machine.addDisplacement:
+            case Machine.subDisplacement:
+            case Machine.multDisplacement:
+                m.iinc(STlocal, -1);
+                emitWord(-1);
+                m.op(ClassFile.I2L);
+                emitWord(0);
+                m.op(ClassFile.I2L);
+                m.op(d == Machine.addDisplacement ? ClassFile.LADD
+                        : d == Machine.subDisplacement ? ClassFile.LSUB : ClassFile.LMUL);
+                emitChecked(addr);
+                break;
+            case Machine.divDisplacement:
+            case Machine.modDisplacement:
+                m.iinc(STlocal, -1);
+                emitWord(0);
+                m.jump(ClassFile.IFEQ, fail(addr, TamVM.failedZeroDivide));
+                emitIndex(-1);
+                m.op(ClassFile.DUP2);
+                m.op(ClassFile.IALOAD);
+                emitWord(0);
+                m.op(d == Machine.divDisplacement ? ClassFile.IDIV : ClassFile.IREM);
+                m.op(ClassFile.IASTORE);
+                break;
+            case Machine.rangecheckDisplacement:
+                m.iinc(STlocal, -2);
+                emitWord(0);
+                emitWord(-1);
+                emitWord(1);
+                helper("outOfRange", "(III)Z");
+                m.jump(ClassFile.IFNE, fail(addr, TamVM.failedRangecheckError));
+                break;
+            default:
+                // primitives that do I/O or touch the heap
+                m.load(ClassFile.ALOAD, VMlocal);
+                m.load(ClassFile.ILOAD, STlocal);
+                putfield("ST", "I");
+                m.load(ClassFile.ALOAD, VMlocal);
+                m.iconst(d);
+                m.ref(ClassFile.INVOKEVIRTUAL, classFile.methodRef(machine, "callPrimitive", "(I)V"));
+                getfield("ST", "I");
+                m.load(ClassFile.ISTORE, STlocal);
+                getfield("status", "I");
+                m.jump(ClassFile.IFNE, fail(addr, -1));
+                break;
+        }
+    }
+
+    private void emitInstruction(int addr) {
+        Instruction instr = code[addr];
+        int n = instr.n, d = instr.d, r = instr.r;
+
+        if (isExit(instr)) {
+            m.iconst(addr);
+            m.jump(ClassFile.GOTO, exitLabel);
+            return;
+        }
+        switch (instr.op) {
+            case Machine.LOADop:
+                if (n == 1) {
+                    emitIndex(0);
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    emitAddress(r, d, addr);
+                    m.op(ClassFile.IALOAD);
+                    m.op(ClassFile.IASTORE);
+                } else if (n > 1) {
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    emitAddress(r, d, addr);
+                    m.load(ClassFile.ILOAD, STlocal);
+                    emitCopy(n);
+                }
+                m.iinc(STlocal, n);
+                break;
+            case Machine.LOADAop:
+                emitIndex(0);
+                emitAddress(r, d, addr);
+                m.op(ClassFile.IASTORE);
+                m.iinc(STlocal, 1);
+                break;
+            case Machine.LOADIop:
+                if (n == 1) {
+                    emitIndex(-1);
+                    m.op(ClassFile.DUP2);
+                    m.op(ClassFile.IALOAD);
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    m.op(95);           // swap
+                    m.op(ClassFile.IALOAD);
+                    m.op(ClassFile.IASTORE);
+                } else {
+                    m.iinc(STlocal, -1);
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    emitWord(0);
+                    m.load(ClassFile.ILOAD, STlocal);
+                    emitCopy(n);
+                    m.iinc(STlocal, n);
+                }
+                break;
+            case Machine.LOADLop:
+                emitIndex(0);
+                m.iconst(d);
+                m.op(ClassFile.IASTORE);
+                m.iinc(STlocal, 1);
+                break;
+            case Machine.STOREop:
+                if (n == 1) {
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    emitAddress(r, d, addr);
+                    m.iinc(STlocal, -1);
+                    emitWord(0);
+                    m.op(ClassFile.IASTORE);
+                } else {
+                    emitAddress(r, d, addr);
+                    m.load(ClassFile.ISTORE, ADDRlocal);
+                    m.iinc(STlocal, -n);
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    m.load(ClassFile.ILOAD, STlocal);
+                    m.load(ClassFile.ILOAD, ADDRlocal);
+                    emitCopy(n);
+                }
+                break;
+            case Machine.STOREIop:
+                m.iinc(STlocal, -1);
+                emitWord(0);
+                m.load(ClassFile.ISTORE, ADDRlocal);
+                m.iinc(STlocal, -n);
+                m.load(ClassFile.ALOAD, DATAlocal);
+                m.load(ClassFile.ILOAD, STlocal);
+                m.load(ClassFile.ILOAD, ADDRlocal);
+                emitCopy(n);
+                break;
+            case Machine.CALLop:
+                emitPrimitive(d, addr);
+                break;
+            case Machine.PUSHop:
+                m.iinc(STlocal, d);
+                break;
+            case Machine.POPop:
+                if (n == 0)
+                    m.iinc(STlocal, -d);
+                else {
+                    m.load(ClassFile.ILOAD, STlocal);
+                    m.iconst(n + d);
+                    m.op(ClassFile.ISUB);
+                    m.load(ClassFile.ISTORE, ADDRlocal);
+                    m.iinc(STlocal, -n);
+                    m.load(ClassFile.ALOAD, DATAlocal);
+                    m.load(ClassFile.ILOAD, STlocal);
+                    m.load(ClassFile.ILOAD, ADDRlocal);
+                    emitCopy(n);
+                    m.load(ClassFile.ILOAD, ADDRlocal);
+                    m.iconst(n);
+                    m.op(ClassFile.IADD);
+                    m.load(ClassFile.ISTORE, STlocal);
+                }
+                break;
+            case Machine.JUMPop:
+                m.jump(ClassFile.GOTO, target(addr, d));
+                break;
+            case Machine.JUMPIFop:
+                m.iinc(STlocal, -1);
+                emitWord(0);
+                m.iconst(n);
+                m.jump(ClassFile.IF_ICMPEQ, target(addr, d));
+                break;
+        }
+    }
+
+    private int target(int addr, int d) {
+        // Returns the label a jump from addr to d goes to: through the poll
+        // test if it goes backwards.
+        if (d > addr)
+            return labels[d];
+        if (pollLabels[d] < 0)
+            pollLabels[d] = m.newLabel();
+        return pollLabels[d];
+    }
+
+    /**
+     * Returns the code addresses at which the compiled code of the routine
+     * with the given entry can be entered.
+     */
+    int[] entries(int entry) {
+        findRoutine(entry);
+        int count = 0;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (isEntry[addr])
+                count++;
+        int[] entries = new int[count];
+        count = 0;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (isEntry[addr])
+                entries[count++] = addr;
+        return entries;
+    }
+
+    /**
+     * Translates the routine with the given entry into a class that
+     * extends CompiledRoutine, and records its entry points in resumable.
+     *
+     * @param entry     the code address of the routine.
+     * @param className the internal name of the class to generate.
+     * @return the class file, or null if the routine cannot be translated.
+     */
+    byte[] translate(int entry, String className) {
+        findRoutine(entry);
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (inRoutine[addr] && ((code[addr].op == Machine.JUMPop)
+                    || (code[addr].op == Machine.JUMPIFop)) && (code[addr].r != Machine.CBr))
+                return null;
+
+        classFile = new ClassFile(className, helpers);
+        failures = new ArrayList<int[]>();
+
+        ClassFile.Code init = classFile.method(ClassFile.ACC_PUBLIC, "<init>", "()V", 1);
+        init.load(ClassFile.ALOAD, 0);
+        init.ref(ClassFile.INVOKESPECIAL, classFile.methodRef(helpers, "<init>", "()V"));
+        init.op(ClassFile.RETURN);
+        init.finish(1);
+
+        m = classFile.method(ClassFile.ACC_PUBLIC, "run", "(L" + machine + ";III)I", maxLocals);
+        labels = new int[CT];
+        pollLabels = new int[CT];
+        Arrays.fill(pollLabels, -1);
+        int low = -1, high = -1, entries = 0;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (inRoutine[addr]) {
+                labels[addr] = m.newLabel();
+                if (isEntry[addr]) {
+                    if (low < 0)
+                        low = addr;
+                    high = addr;
+                    entries++;
+                }
+            }
+        if (entries == 0)
+            return null;
+        exitLabel = m.newLabel();
+        int badEntry = m.newLabel();
+
+        // Prologue: fetch the data store and dispatch on the entry address ...
+        getfield("data", "[I");
+        m.load(ClassFile.ASTORE, DATAlocal);
+        getfield("displayBase", "I");
+        m.load(ClassFile.ISTORE, DPlocal);
+        m.op(9);                        // lconst_0
+        m.load(ClassFile.LSTORE, COUNTlocal);
+        m.load(ClassFile.ILOAD, CPlocal);
+        int[] targets = new int[high - low + 1];
+        resumable = new int[entries];
+        entries = 0;
+        for (int addr = low; addr <= high; addr++)
+            if (inRoutine[addr] && isEntry[addr]) {
+                targets[addr - low] = labels[addr];
+                resumable[entries++] = addr;
+            } else
+                targets[addr - low] = badEntry;
+        m.tableswitch(low, high, targets, badEntry);
+
+        // Body: the instructions in address order ...
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (inRoutine[addr]) {
+                m.mark(labels[addr]);
+                if (isLeader[addr]) {
+                    int length = blockLength(addr);
+                    blockEnd = addr + length;
+                    if (length > 0) {
+                        m.load(ClassFile.LLOAD, COUNTlocal);
+                        m.iconst(length);
+                        m.op(ClassFile.I2L);
+                        m.op(ClassFile.LADD);
+                        m.load(ClassFile.LSTORE, COUNTlocal);
+                    }
+                    // a block not yet covered when the routine is compiled
+                    // is marked when it reaches its last instruction, or
+                    // fails before it
+                    boolean covering = (coverage != null) && (length > 0) && !coverage.covered(addr, length);
+                    coverFrom = covering ? addr : -1;
+                }
+                if ((coverFrom >= 0) && (addr == blockEnd - 1))
+                    emitCover(coverFrom, blockEnd - coverFrom);
+                emitInstruction(addr);
+                if ((addr + 1 < CT) && !inRoutine[addr + 1] && !isExit(code[addr])
+                        && (code[addr].op != Machine.JUMPop)) {
+                    // the routine falls through into code it does not own
+                    m.iconst(addr + 1);
+                    m.jump(ClassFile.GOTO, exitLabel);
+                }
+            }
+
+        // Failures: record the status and leave at the failing instruction ...
+        m.mark(badEntry);
+        m.load(ClassFile.ALOAD, VMlocal);
+        m.iconst(TamVM.failedInvalidCodeAddress);
+        putfield("status", "I");
+        m.load(ClassFile.ILOAD, CPlocal);
+        m.jump(ClassFile.GOTO, exitLabel);
+        for (int[] f : failures) {
+            m.mark(f[0]);
+            if (f[2] >= 0) {
+                m.load(ClassFile.ALOAD, VMlocal);
+                m.iconst(f[2]);
+                putfield("status", "I");
+            }
+            if (f[3] > 0) {
+                m.load(ClassFile.LLOAD, COUNTlocal);
+                m.iconst(f[3]);
+                m.op(ClassFile.I2L);
+                m.op(ClassFile.LSUB);
+                m.load(ClassFile.LSTORE, COUNTlocal);
+            }
+            if (f[5] > 0)
+                emitCover(f[4], f[5]);
+            m.iconst(f[1]);
+            m.jump(ClassFile.GOTO, exitLabel);
+        }
+
+        // Polls: go round the loop, or leave at its head if the machine
+        // has been asked to poll ...
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (pollLabels[addr] >= 0) {
+                m.mark(pollLabels[addr]);
+                getfield("pollDue", "Z");
+                m.jump(ClassFile.IFEQ, labels[addr]);
+                m.iconst(addr);
+                m.jump(ClassFile.GOTO, exitLabel);
+            }
+
+        // Exit: write back ST and the instruction count, and return CP ...
+        m.mark(exitLabel);
+        m.load(ClassFile.ALOAD, VMlocal);
+        m.load(ClassFile.ILOAD, STlocal);
+        putfield("ST", "I");
+        m.load(ClassFile.ALOAD, VMlocal);
+        m.op(ClassFile.DUP);
+        m.ref(ClassFile.GETFIELD, classFile.fieldRef(machine, "instructionCount", "J"));
+        m.load(ClassFile.LLOAD, COUNTlocal);
+        m.op(ClassFile.LADD);
+        putfield("instructionCount", "J");
+        m.op(ClassFile.IRETURN);
+
+        if (!m.finish(maxStack))
+            return null;
+        return classFile.toByteArray();
+    }
+}
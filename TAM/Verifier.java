@@ -0,0 +1,464 @@
+package TAM;
+
+import java.util.ArrayDeque;
+
+/**
+ * Verifies the TAM code in the given file before it is run.
+ * <p>
+ * The verifier checks that every instruction has well-formed register,
+ * length and operand fields, that every jump and call goes to an address
+ * inside the code store, and that the stack depth at each instruction of a
+ * routine is the same along every path that reaches it. It then records the
+ * largest number of words each routine's frame occupies above the frame
+ * base, so that a verified program can be run with one space check on
+ * entry to each routine instead of a check on every push.
+ * <p>
+ * For example:
+ * <pre>
+ *   java TAM.Verifier obj.tam
+ * </pre>
+ */
+
+public class Verifier {
+
+    static String objectName;
+
+    /**
+     * The reason the last program verified was rejected, or null if it
+     * was accepted.
+     */
+    String error;
+
+    /**
+     * For each code address that is the entry of a routine, the largest
+     * number of words the routine's frame occupies above its base,
+     * including the link data; -1 at every other address. The entry at CB
+     * is the depth of the main program's frame above SB.
+     */
+    int[] frameDepth;
+
+    /**
+     * For each routine entry, the number of argument words its RETURN
+     * instruction removes and the number of result words it leaves,
+     * or -1 if the routine never returns.
+     */
+    int[] argsSize, resultSize;
+
+    /**
+     * For each code address, the entry of the routine the instruction
+     * belongs to. Instructions no routine reaches are counted as part of
+     * the main program.
+     */
+    int[] routineOf;
+
+    int CT;
+
+    // Code addresses that are the target of a jump, and routine entries
+    // whose closures are taken by LOADA.
+    private boolean[] jumpTarget, closureEntry, closurePrimitive;
+
+    /**
+     * Returns the number of words the given primitive removes from the
+     * stack, or -1 if that depends on the value on top of the stack.
+     *
+     * @param d the displacement of the primitive routine.
+     */
+    static int primitiveArgs(int d) {
+        switch (d) {
+            case Machine.idDisplacement:
+            case Machine.eolDisplacement:
+            case Machine.eofDisplacement:
+            case Machine.geteolDisplacement:
+            case Machine.puteolDisplacement:
+            case Machine.regionBeginDisplacement:
+            case Machine.regionEndDisplacement:
+            case Machine.checkpointDisplacement:
+                return 0;
+            case Machine.notDisplacement:
+            case Machine.succDisplacement:
+            case Machine.predDisplacement:
+            case Machine.negDisplacement:
+            case Machine.getDisplacement:
+            case Machine.putDisplacement:
+            case Machine.getintDisplacement:
+            case Machine.putintDisplacement:
+            case Machine.newDisplacement:
+            case Machine.disposeDisplacement:
+                return 1;
+            case Machine.rangecheckDisplacement:
+                return 3;
+            case Machine.eqDisplacement:
+            case Machine.neDisplacement:
+            case Machine.fixedLexDisplacement:
+                return -1;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Returns the number of words the given primitive leaves on the stack.
+     *
+     * @param d the displacement of the primitive routine.
+     */
+    static int primitiveResults(int d) {
+        switch (d) {
+            case Machine.idDisplacement:
+            case Machine.getDisplacement:
+            case Machine.putDisplacement:
+            case Machine.geteolDisplacement:
+            case Machine.puteolDisplacement:
+            case Machine.getintDisplacement:
+            case Machine.putintDisplacement:
+            case Machine.disposeDisplacement:
+            case Machine.regionBeginDisplacement:
+            case Machine.regionEndDisplacement:
+            case Machine.checkpointDisplacement:
+                return 0;
+            default:
+                return 1;
+        }
+    }
+
+    static boolean isPrimitive(int d) {
+        return (d >= Machine.idDisplacement) && (d <= Machine.checkpointDisplacement);
+    }
+
+    private boolean reject(int addr, String reason) {
+        error = "address " + addr + ": " + reason;
+        return false;
+    }
+
+    /**
+     * Checks the fields of every instruction, and collects the jump
+     * targets and routine entries.
+     */
+    private boolean checkInstructions(Instruction[] code) {
+        for (int addr = Machine.CB; addr < CT; addr++) {
+            Instruction instr = code[addr];
+            if ((instr.op < Machine.LOADop) || (instr.op > Machine.HALTop) || (instr.op == 9))
+                return reject(addr, "invalid operation code " + instr.op);
+            if ((instr.r < 0) || (instr.r > Machine.CPr))
+                return reject(addr, "invalid register " + instr.r);
+            if ((instr.n < 0) || (instr.n > 255))
+                return reject(addr, "invalid length " + instr.n);
+            if ((instr.d < -Machine.maxintRep) || (instr.d > Machine.maxintRep))
+                return reject(addr, "invalid operand " + instr.d);
+            switch (instr.op) {
+                case Machine.LOADAop:
+                    if (instr.r == Machine.CBr) {
+                        if ((instr.d < Machine.CB) || (instr.d >= CT))
+                            return reject(addr, "closure address " + instr.d + " outside code store");
+                        closureEntry[instr.d] = true;
+                        frameDepth[instr.d] = 0;
+                    } else if (instr.r == Machine.PBr) {
+                        if (!isPrimitive(instr.d))
+                            return reject(addr, "closure of unknown primitive " + instr.d);
+                        closurePrimitive[instr.d] = true;
+                    }
+                    break;
+                case Machine.CALLop:
+                    if (instr.n > Machine.CPr)
+                        return reject(addr, "invalid static link register " + instr.n);
+                    if (instr.r == Machine.PBr) {
+                        if (!isPrimitive(instr.d))
+                            return reject(addr, "call of unknown primitive " + instr.d);
+                        if ((primitiveArgs(instr.d) < 0) && ((addr == Machine.CB)
+                                || (code[addr - 1].op != Machine.LOADLop) || jumpTarget[addr]))
+                            return reject(addr, "size operand of primitive is not a literal");
+                    } else if (instr.r == Machine.CBr) {
+                        if ((instr.d < Machine.CB) || (instr.d >= CT))
+                            return reject(addr, "call of address " + instr.d + " outside code store");
+                        frameDepth[instr.d] = 0;
+                    } else
+                        return reject(addr, "call through a register other than CB or PB");
+                    break;
+                case Machine.JUMPop:
+                case Machine.JUMPIFop:
+                    if (instr.r != Machine.CBr)
+                        return reject(addr, "jump through a register other than CB");
+                    if ((instr.d < Machine.CB) || (instr.d >= CT))
+                        return reject(addr, "jump to address " + instr.d + " outside code store");
+                    jumpTarget[instr.d] = true;
+                    break;
+                case Machine.JUMPIop:
+                    return reject(addr, "computed jump");
+                case Machine.PUSHop:
+                case Machine.POPop:
+                case Machine.RETURNop:
+                    if (instr.d < 0)
+                        return reject(addr, "negative length " + instr.d);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the RETURN instructions reachable from the routine entry, and
+     * records the routine's argument and result sizes.
+     */
+    private boolean findSignature(Instruction[] code, int entry) {
+        boolean[] seen = new boolean[CT];
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+
+        argsSize[entry] = -1;
+        resultSize[entry] = -1;
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int addr = work.pop();
+            if ((addr >= CT) || seen[addr])
+                continue;
+            seen[addr] = true;
+            Instruction instr = code[addr];
+            switch (instr.op) {
+                case Machine.RETURNop:
+                    if (argsSize[entry] < 0) {
+                        argsSize[entry] = instr.d;
+                        resultSize[entry] = instr.n;
+                    } else if ((argsSize[entry] != instr.d) || (resultSize[entry] != instr.n))
+                        return reject(addr, "routine at " + entry + " returns in two different ways");
+                    break;
+                case Machine.HALTop:
+                    break;
+                case Machine.JUMPop:
+                    work.push(instr.d);
+                    break;
+                case Machine.JUMPIFop:
+                    work.push(instr.d);
+                    work.push(addr + 1);
+                    break;
+                default:
+                    work.push(addr + 1);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the net number of words a CALLI leaves on the stack after
+     * removing its arguments, if every routine or primitive whose closure
+     * the program takes has the same net effect; otherwise returns
+     * Integer.MIN_VALUE.
+     */
+    private int closureEffect(int[] args) {
+        int effect = Integer.MIN_VALUE, size = -1;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (closureEntry[addr]) {
+                if (argsSize[addr] < 0)
+                    continue;
+                int e = resultSize[addr] - argsSize[addr];
+                if ((effect != Integer.MIN_VALUE) && ((e != effect) || (argsSize[addr] != size)))
+                    return Integer.MIN_VALUE;
+                effect = e;
+                size = argsSize[addr];
+            }
+        for (int d = Machine.idDisplacement; d <= Machine.checkpointDisplacement; d++)
+            if (closurePrimitive[d]) {
+                if (primitiveArgs(d) < 0)
+                    return Integer.MIN_VALUE;
+                int e = primitiveResults(d) - primitiveArgs(d);
+                if ((effect != Integer.MIN_VALUE) && ((e != effect) || (primitiveArgs(d) != size)))
+                    return Integer.MIN_VALUE;
+                effect = e;
+                size = primitiveArgs(d);
+            }
+        args[0] = size;
+        return effect;
+    }
+
+    /**
+     * Computes the stack depth at each instruction of the routine with the
+     * given entry, and records the largest depth in frameDepth.
+     */
+    private boolean analyseRoutine(Instruction[] code, int entry) {
+        int base = (entry == Machine.CB) ? 0 : Machine.linkDataSize;
+        int[] depthAt = new int[CT];
+        int[] closureArgs = new int[1];
+        int maxDepth = base;
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+
+        java.util.Arrays.fill(depthAt, -1);
+        depthAt[entry] = base;
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int addr = work.pop();
+            int depth = depthAt[addr];
+            if (routineOf[addr] < 0)
+                routineOf[addr] = entry;
+            Instruction instr = code[addr];
+            int pops = 0, pushes = 0;
+            boolean fallsThrough = true;
+            int target = -1;
+
+            switch (instr.op) {
+                case Machine.LOADop:
+                    pushes = instr.n;
+                    break;
+                case Machine.LOADAop:
+                case Machine.LOADLop:
+                    pushes = 1;
+                    break;
+                case Machine.LOADIop:
+                    pops = 1;
+                    pushes = instr.n;
+                    break;
+                case Machine.STOREop:
+                    pops = instr.n;
+                    break;
+                case Machine.STOREIop:
+                    pops = instr.n + 1;
+                    break;
+                case Machine.CALLop:
+                    if (instr.r == Machine.PBr) {
+                        pops = primitiveArgs(instr.d);
+                        if (pops < 0) {
+                            int size = code[addr - 1].d;
+                            if (size < 0)
+                                return reject(addr, "negative size operand " + size);
+                            pops = 2 * size + 1;
+                        }
+                        pushes = primitiveResults(instr.d);
+                    } else if (argsSize[instr.d] < 0)
+                        fallsThrough = false;   // the routine never returns
+                    else {
+                        pops = argsSize[instr.d];
+                        pushes = resultSize[instr.d];
+                    }
+                    break;
+                case Machine.CALLIop: {
+                    int effect = closureEffect(closureArgs);
+                    if (effect == Integer.MIN_VALUE)
+                        return reject(addr, "closures called here differ in stack effect");
+                    pops = 2 + closureArgs[0];
+                    pushes = closureArgs[0] + effect;
+                    break;
+                }
+                case Machine.RETURNop:
+                    if (entry == Machine.CB)
+                        return reject(addr, "RETURN from the main program");
+                    if (depth - instr.n < base)
+                        return reject(addr, "RETURN of more words than are on the stack");
+                    fallsThrough = false;
+                    break;
+                case Machine.PUSHop:
+                    pushes = instr.d;
+                    break;
+                case Machine.POPop:
+                    if (depth - instr.n - instr.d < base)
+                        return reject(addr, "stack underflow");
+                    break;
+                case Machine.JUMPop:
+                    target = instr.d;
+                    fallsThrough = false;
+                    break;
+                case Machine.JUMPIFop:
+                    pops = 1;
+                    target = instr.d;
+                    break;
+                case Machine.HALTop:
+                    fallsThrough = false;
+                    break;
+            }
+            if (depth - pops < base)
+                return reject(addr, "stack underflow");
+            int next = depth - pops + pushes;
+            if (instr.op == Machine.POPop)
+                next = depth - instr.d;
+            if (next > maxDepth)
+                maxDepth = next;
+            if (fallsThrough) {
+                if (addr + 1 >= CT)
+                    return reject(addr, "execution runs off the end of the code store");
+                if (!flow(depthAt, addr + 1, next, work))
+                    return false;
+            }
+            if ((target >= 0) && !flow(depthAt, target, next, work))
+                return false;
+        }
+        frameDepth[entry] = maxDepth;
+        return true;
+    }
+
+    private boolean flow(int[] depthAt, int addr, int depth, ArrayDeque<Integer> work) {
+        if (depthAt[addr] < 0) {
+            depthAt[addr] = depth;
+            work.push(addr);
+        } else if (depthAt[addr] != depth)
+            return reject(addr, "stack depth " + depthAt[addr] + " on one path and "
+                    + depth + " on another");
+        return true;
+    }
+
+    /**
+     * Verifies the program between CB and ct in the given code store.
+     *
+     * @param code the code store.
+     * @param ct   the address just past the last instruction.
+     * @return true iff the program was verified; otherwise error holds the
+     * reason it was rejected.
+     */
+    boolean verify(Instruction[] code, int ct) {
+        CT = ct;
+        error = null;
+        frameDepth = new int[CT];
+        argsSize = new int[CT];
+        resultSize = new int[CT];
+        jumpTarget = new boolean[CT];
+        closureEntry = new boolean[CT];
+        closurePrimitive = new boolean[Machine.checkpointDisplacement + 1];
+        routineOf = new int[CT];
+        java.util.Arrays.fill(frameDepth, -1);
+        java.util.Arrays.fill(routineOf, -1);
+
+        if (CT == Machine.CB)
+            return reject(Machine.CB, "empty program");
+        // jump targets are needed to check the size operands of eq, ne
+        // and fixedLex, so collect them in a first pass
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (((code[addr].op == Machine.JUMPop) || (code[addr].op == Machine.JUMPIFop))
+                    && (code[addr].d >= Machine.CB) && (code[addr].d < CT))
+                jumpTarget[code[addr].d] = true;
+        frameDepth[Machine.CB] = 0;
+        if (!checkInstructions(code))
+            return false;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if ((frameDepth[addr] >= 0) && !findSignature(code, addr))
+                return false;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if ((frameDepth[addr] >= 0) && !analyseRoutine(code, addr))
+                return false;
+        for (int addr = Machine.CB; addr < CT; addr++)
+            if (routineOf[addr] < 0)
+                routineOf[addr] = Machine.CB;
+        return true;
+    }
+
+
+// VERIFY
+
+    public static void main(String[] args) {
+        System.out.println("********** TAM Verifier (Java Version 2.0) **********");
+
+        if (args.length == 1)
+            objectName = args[0];
+        else
+            objectName = "obj.tam";
+
+        TamVM vm = new TamVM();
+        vm.loadObjectProgram(objectName);
+        Verifier verifier = new Verifier();
+        if (verifier.verify(vm.code, vm.CT)) {
+            for (int addr = Machine.CB; addr < vm.CT; addr++)
+                if (verifier.frameDepth[addr] >= 0)
+                    System.out.println("routine " + addr + ": frame depth " + verifier.frameDepth[addr]
+                            + (addr == Machine.CB ? "" : ", " + verifier.argsSize[addr] + " words in, "
+                            + verifier.resultSize[addr] + " words out"));
+            System.out.println("Program verified.");
+        } else {
+            System.out.println("Program rejected: " + verifier.error);
+            System.exit(1);
+        }
+    }
+}
@@ -30,4 +30,5 @@ public class LetCommand extends Command {
 
     public Declaration D;
     public Command C;
+    public boolean region;      // frees the heap blocks it allocates
 }
@@ -33,4 +33,5 @@ public class ProcDeclaration extends Declaration {
     public Identifier I;
     public FormalParameterSequence FPS;
     public Command C;
+    public boolean region;      // frees the heap blocks it allocates
 }
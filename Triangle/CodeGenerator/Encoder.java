@@ -14,8 +14,10 @@
 
 package Triangle.CodeGenerator;
 
+import TAM.DebugInfo;
 import TAM.Instruction;
 import TAM.Machine;
+import TAM.ObjectFile;
 import Triangle.AbstractSyntaxTrees.*;
 import Triangle.ErrorReporter;
 import Triangle.StdEnvironment;
@@ -23,11 +25,9 @@ import Triangle.SyntacticAnalyzer.SourcePosition;
 
 import javax.crypto.Mac;
 import javax.lang.model.type.ArrayType;
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public final class Encoder implements Visitor {
 
@@ -35,15 +35,19 @@ public final class Encoder implements Visitor {
     // Commands
     public Object visitAssignCommand(AssignCommand ast, Object o) {
         Frame frame = (Frame) o;
+        int outerLine = enterLine(ast);
         Integer valSize = (Integer) ast.E.visit(this, frame);
         encodeStore(ast.V, new Frame(frame, valSize), valSize);
+        currentLine = outerLine;
         return null;
     }
 
     public Object visitCallCommand(CallCommand ast, Object o) {
         Frame frame = (Frame) o;
+        int outerLine = enterLine(ast);
         Integer argsSize = (Integer) ast.APS.visit(this, frame);
         ast.I.visit(this, new Frame(frame.level, argsSize));
+        currentLine = outerLine;
         return null;
     }
 
@@ -54,6 +58,7 @@ public final class Encoder implements Visitor {
     public Object visitIfCommand(IfCommand ast, Object o) {
         Frame frame = (Frame) o;
         int jumpifAddr, jumpAddr;
+        int outerLine = enterLine(ast);
 
         Integer valSize = (Integer) ast.E.visit(this, frame);
         jumpifAddr = nextInstrAddr;
@@ -64,11 +69,13 @@ public final class Encoder implements Visitor {
         patch(jumpifAddr, nextInstrAddr);
         ast.C2.visit(this, frame);
         patch(jumpAddr, nextInstrAddr);
+        currentLine = outerLine;
         return null;
     }
 
     public Object visitCaseCommand(CaseCommand ast, Object o) {
         Frame frame = (Frame) o;
+        int outerLine = enterLine(ast);
 
         int extraSize = (Integer) ast.E.visit(this, frame);
         ast.CA.visit(this, frame);
@@ -76,13 +83,14 @@ public final class Encoder implements Visitor {
             patch(((IntegerLiteralCaseAggregate) curr).jumpAddr, nextInstrAddr);
         }
         emit(Machine.POPop, 0, 0, 1);
+        currentLine = outerLine;
         return null;
     }
 
     public Object visitForCommand(ForCommand ast, Object o) {
         Frame frame = (Frame) o;
         int jumpAddr, loopAddr;
-
+        int outerLine = enterLine(ast);
 
         int extraSize = (Integer) ast.CD.visit(this, frame);
         loopAddr = nextInstrAddr;
@@ -91,6 +99,7 @@ public final class Encoder implements Visitor {
             emit(Machine.LOADLop, 0, 0, ((KnownValue) ast.CD.entity).value);
             ast.CD.entity = new UnknownValue(1, frame.level, frame.size);
         }
+        noteGlobals(frame, extraSize);
         emit(Machine.LOADop, extraSize, Machine.STr, -1);
         ast.E2.visit(this, frame);
         emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.geDisplacement);
@@ -104,15 +113,23 @@ public final class Encoder implements Visitor {
         patch(jumpAddr, nextInstrAddr);
         if (extraSize > 0)
             emit(Machine.POPop, 0, 0, extraSize);
+        currentLine = outerLine;
         return null;
     }
 
     public Object visitLetCommand(LetCommand ast, Object o) {
         Frame frame = (Frame) o;
+        int outerLine = enterLine(ast);
+        if (ast.region)
+            emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.regionBeginDisplacement);
         int extraSize = ((Integer) ast.D.visit(this, frame)).intValue();
+        noteGlobals(frame, extraSize);
         ast.C.visit(this, new Frame(frame, extraSize));
+        if (ast.region)
+            emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.regionEndDisplacement);
         if (extraSize > 0)
             emit(Machine.POPop, 0, 0, extraSize);
+        currentLine = outerLine;
         return null;
     }
 
@@ -130,6 +147,7 @@ public final class Encoder implements Visitor {
 
         Frame frame = (Frame) o;
         int jumpAddr, loopAddr;
+        int outerLine = enterLine(ast);
 
         jumpAddr = nextInstrAddr;
         emit(Machine.JUMPop, 0, Machine.CBr, 0);
@@ -138,17 +156,20 @@ public final class Encoder implements Visitor {
         patch(jumpAddr, nextInstrAddr);
         ast.E.visit(this, frame);
         emit(Machine.JUMPIFop, Machine.trueRep, Machine.CBr, loopAddr);
+        currentLine = outerLine;
         return null;
     }
 
     public Object visitRepeatCommand(RepeatCommand ast, Object o) {
         Frame frame = (Frame) o;
         int loopAddr;
+        int outerLine = enterLine(ast);
 
         loopAddr = nextInstrAddr;
         ast.C.visit(this, frame);
         ast.E.visit(this, frame);
         emit(Machine.JUMPIFop, Machine.falseRep, Machine.CBr, loopAddr);
+        currentLine = outerLine;
         return null;
     }
 
@@ -224,17 +245,30 @@ public final class Encoder implements Visitor {
     }
 
     public Object visitDynamicStringExpression(DynamicStringExpression ast, Object o) {
+        // A dynamic string is the address of a header holding its length and
+        // the address of its first character; the characters are held in a
+        // buffer preceded by its capacity and the number of characters in
+        // use (see TamVM). A literal is a constant: a full buffer followed by
+        // its header, so it is never appended to in place.
         ast.type.visit(this, null);
-        int valSize = ast.DSL.spelling.length();
-        emit(Machine.LOADLop, 0, 0, valSize);
-        for (int i=0; i < valSize; i++) {
-            emit(Machine.LOADLop, 0, 0, ast.DSL.spelling.charAt(i));
+        Integer header = dynamicStringConstants.get(ast.DSL.spelling);
+        if (header == null) {
+            String spelling = ast.DSL.spelling;
+            int valSize = spelling.length();
+            int[] words = new int[valSize + 4];
+            int base = -(constants.size() + words.length);
+            words[0] = valSize;                         // capacity
+            words[1] = valSize;                         // characters in use
+            for (int i=0; i < valSize; i++)
+                words[i + 2] = spelling.charAt(i);
+            words[valSize + 2] = valSize;               // length
+            words[valSize + 3] = base + 2;              // first character
+            addConstant(words);
+            header = base + valSize + 2;
+            relocations.add(header + 1);
+            dynamicStringConstants.put(spelling, header);
         }
-        emit(Machine.LOADLop, 0, 0, valSize+1);
-        emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.newDisplacement);
-        emit(Machine.LOADop, valSize + 2, Machine.STr, -2 - valSize);
-        emit(Machine.STOREIop, valSize+1, 0, 0);
-        emit(Machine.POPop, 1, 0, valSize+1);
+        emit(Machine.LOADAop, 0, Machine.HBr, header);
         return 1;
     }
 
@@ -283,6 +317,7 @@ public final class Encoder implements Visitor {
         Frame frame = (Frame) o;
         ast.type.visit(this, null);
         int extraSize = ((Integer) ast.D.visit(this, frame)).intValue();
+        noteGlobals(frame, extraSize);
         Frame frame1 = new Frame(frame, extraSize);
         Integer valSize = (Integer) ast.E.visit(this, frame1);
         if (extraSize > 0)
@@ -373,6 +408,8 @@ public final class Encoder implements Visitor {
         emit(Machine.JUMPop, 0, Machine.CBr, 0);
         ast.entity = new KnownRoutine(Machine.closureSize, frame.level, nextInstrAddr);
         writeTableDetails(ast);
+        int outerLine = enterLine(ast);
+        int outerRoutine = enterRoutine("func " + ast.I.spelling);
         if (frame.level == Machine.maxRoutineLevel)
             reporter.reportRestriction("can't nest routines more than 7 deep");
         else {
@@ -384,6 +421,8 @@ public final class Encoder implements Visitor {
             ast.FPS.copyResults(this, frame2);
         }
         emit(Machine.RETURNop, valSize, 0, argsSize);
+        currentRoutine = outerRoutine;
+        currentLine = outerLine;
         patch(jumpAddr, nextInstrAddr);
         return 0;
     }
@@ -396,6 +435,8 @@ public final class Encoder implements Visitor {
         emit(Machine.JUMPop, 0, Machine.CBr, 0);
         ast.entity = new KnownRoutine(Machine.closureSize, frame.level, nextInstrAddr);
         writeTableDetails(ast);
+        int outerLine = enterLine(ast);
+        int outerRoutine = enterRoutine("operator " + ast.O.spelling);
         if (frame.level == Machine.maxRoutineLevel)
             reporter.reportRestriction("can't nest routines more than 7 deep");
         else {
@@ -405,6 +446,8 @@ public final class Encoder implements Visitor {
             valSize = (Integer) ast.E.visit(this, frame2);
         }
         emit(Machine.RETURNop, valSize, 0, argsSize);
+        currentRoutine = outerRoutine;
+        currentLine = outerLine;
         patch(jumpAddr, nextInstrAddr);
         return 0;
     }
@@ -418,17 +461,25 @@ public final class Encoder implements Visitor {
         ast.entity = new KnownRoutine(Machine.closureSize, frame.level,
                 nextInstrAddr);
         writeTableDetails(ast);
+        int outerLine = enterLine(ast);
+        int outerRoutine = enterRoutine("proc " + ast.I.spelling);
         if (frame.level == Machine.maxRoutineLevel)
             reporter.reportRestriction("can't nest routines so deeply");
         else {
             Frame frame1 = new Frame(frame.level + 1, 0);
             argsSize = ((Integer) ast.FPS.visit(this, frame1)).intValue();
             Frame frame2 = new Frame(frame.level + 1, Machine.linkDataSize);
+            if (ast.region)
+                emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.regionBeginDisplacement);
             ast.C.visit(this, frame2);
 
             ast.FPS.copyResults(this, frame2);
+            if (ast.region)
+                emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.regionEndDisplacement);
         }
         emit(Machine.RETURNop, 0, 0, argsSize);
+        currentRoutine = outerRoutine;
+        currentLine = outerLine;
         patch(jumpAddr, nextInstrAddr);
         return 0;
     }
@@ -856,10 +907,24 @@ public final class Encoder implements Visitor {
 
     public Object visitFixedStringLiteral(FixedStringLiteral ast, Object o) {
         Frame frame = (Frame) o;
+        int valSize = ast.spelling.length();
 
-        for (Character c : ast.spelling.toCharArray()) {
-            emit(Machine.LOADLop, 0, 0, c);
+        if ((valSize == 0) || (valSize > 255)) {
+            // too long to load in one instruction
+            for (Character c : ast.spelling.toCharArray()) {
+                emit(Machine.LOADLop, 0, 0, c);
+            }
+            return null;
+        }
+        Integer displacement = fixedStringConstants.get(ast.spelling);
+        if (displacement == null) {
+            int[] words = new int[valSize];
+            for (int i=0; i < valSize; i++)
+                words[i] = ast.spelling.charAt(i);
+            displacement = addConstant(words);
+            fixedStringConstants.put(ast.spelling, displacement);
         }
+        emit(Machine.LOADop, valSize, Machine.HBr, displacement);
 
         return null;
     }
@@ -950,9 +1015,11 @@ public final class Encoder implements Visitor {
         baseObject = (RuntimeEntity) ast.V.visit(this, frame);
 
         if (ast.V.type.equals(StdEnvironment.dynamicStringType)) {
+            // fetch the address of the first character from the header
             encodeFetch(ast.V, frame, Machine.addressSize);
-            ast.E.visit(this, o);
             emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.succDisplacement);
+            emit(Machine.LOADIop, Machine.addressSize, 0, 0);
+            ast.E.visit(this, o);
             emit(Machine.CALLop, Machine.SBr, Machine.PBr, Machine.addDisplacement);
             emit(Machine.LOADIop, Machine.characterSize, 0, 0);
             return baseObject;
@@ -1075,6 +1142,7 @@ public final class Encoder implements Visitor {
         elaborateStdPrimRoutine(StdEnvironment.putintDecl, Machine.putintDisplacement);
         elaborateStdPrimRoutine(StdEnvironment.geteolDecl, Machine.geteolDisplacement);
         elaborateStdPrimRoutine(StdEnvironment.puteolDecl, Machine.puteolDisplacement);
+        elaborateStdPrimRoutine(StdEnvironment.checkpointDecl, Machine.checkpointDisplacement);
         elaborateStdEqRoutine(StdEnvironment.equalDecl, Machine.eqDisplacement);
         elaborateStdEqRoutine(StdEnvironment.unequalDecl, Machine.neDisplacement);
 
@@ -1085,26 +1153,27 @@ public final class Encoder implements Visitor {
     // Saves the object program in the named file.
 
     public void saveObjectProgram(String objectName) {
-        FileOutputStream objectFile = null;
-        DataOutputStream objectStream = null;
-
-        int addr;
-
+        ObjectFile program = new ObjectFile();
+        program.code = Machine.code;
+        program.codeSize = nextInstrAddr - Machine.CB;
+        program.dataSize = globalSize + constants.size();
+        program.constants = toArray(constants);
+        program.relocations = toArray(relocations);
+        program.debugInfo = debugInfo.toBytes();
         try {
-            objectFile = new FileOutputStream(objectName);
-            objectStream = new DataOutputStream(objectFile);
-
-            addr = Machine.CB;
-            for (addr = Machine.CB; addr < nextInstrAddr; addr++)
-                Machine.code[addr].write(objectStream);
-            objectFile.close();
-        } catch (FileNotFoundException s) {
-            System.err.println("Error opening object file: " + s);
+            program.save(objectName);
         } catch (IOException s) {
             System.err.println("Error writing object file: " + s);
         }
     }
 
+    private static int[] toArray(ArrayList<Integer> words) {
+        int[] array = new int[words.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = words.get(i);
+        return array;
+    }
+
     boolean tableDetailsReqd;
 
     public static void writeTableDetails(AST ast) {
@@ -1132,6 +1201,7 @@ public final class Encoder implements Visitor {
         if (nextInstrAddr == Machine.PB)
             reporter.reportRestriction("too many instructions for code segment");
         else {
+            debugInfo.note(nextInstrAddr, currentLine, currentRoutine);
             Machine.code[nextInstrAddr] = nextInstr;
             nextInstrAddr = nextInstrAddr + 1;
         }
@@ -1142,6 +1212,77 @@ public final class Encoder implements Visitor {
         Machine.code[addr].d = d;
     }
 
+    // CONSTANT SEGMENT
+
+    // Implementation notes:
+    // String literals are not built by the code that uses them, but placed
+    // in the constant segment of the object program, which is loaded at the
+    // top of the data store before the program starts, and addressed
+    // relative to HB. Constants are allocated downwards from HB, so the
+    // displacement of each is known as soon as it is added; equal literals
+    // share one constant. Nothing is ever stored into a constant.
+
+    // the words of the constant segment, lowest address first, and the
+    // displacements of the words among them that hold addresses
+    private ArrayList<Integer> constants = new ArrayList<Integer>();
+    private ArrayList<Integer> relocations = new ArrayList<Integer>();
+
+    // the number of words of global variables, which with the constants
+    // make up the least data store the program can run in
+    private int globalSize = 0;
+
+    private void noteGlobals(Frame frame, int extraSize) {
+        // Counts the words that declarations at level 0 have just added to
+        // the main program's frame: variables, and constants and loop
+        // controls whose values are computed at run time.
+        if (frame.level == 0)
+            globalSize = Math.max(globalSize, frame.size + extraSize);
+    }
+
+    private HashMap<String, Integer> fixedStringConstants = new HashMap<String, Integer>();
+    private HashMap<String, Integer> dynamicStringConstants = new HashMap<String, Integer>();
+
+    // Adds the given words to the constant segment, and returns the
+    // displacement from HB of the first.
+    private int addConstant(int[] words) {
+        ArrayList<Integer> block = new ArrayList<Integer>(words.length);
+        for (int word : words)
+            block.add(word);
+        constants.addAll(0, block);
+        return -constants.size();
+    }
+
+    // DEBUG INFORMATION
+
+    // Implementation notes:
+    // As each instruction is emitted, it is noted in the debug table with
+    // the line of the innermost command being encoded and the routine it
+    // belongs to. A command sets the line on entry and restores its
+    // enclosing command's on exit, so code emitted after a nested command,
+    // such as the test at the foot of a while loop, is given the line of
+    // the command it belongs to. A routine does the same with the current
+    // routine.
+
+    private DebugInfo debugInfo = new DebugInfo();
+    private int currentLine = 0, currentRoutine = 0;
+
+    // Makes the given command's line the current line, and returns the
+    // line it replaces.
+    private int enterLine(AST ast) {
+        int outerLine = currentLine;
+        if ((ast.position != null) && (ast.position.start > 0))
+            currentLine = ast.position.start;
+        return outerLine;
+    }
+
+    // Makes a new routine of the given name the current routine, and
+    // returns the routine it replaces.
+    private int enterRoutine(String name) {
+        int outerRoutine = currentRoutine;
+        currentRoutine = debugInfo.addRoutine(name);
+        return outerRoutine;
+    }
+
     // DATA REPRESENTATION
 
     public int characterValuation(String spelling) {
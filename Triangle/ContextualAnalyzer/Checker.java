@@ -36,6 +36,7 @@ public final class Checker implements Visitor {
             reporter.reportError("LHS of assignment is not a variable", "", ast.V.position);
         if (!((vType.recursive && eType == StdEnvironment.nilType) || eType.equals(vType)))
             reporter.reportError("assignment incompatibilty", "", ast.position);
+        escapes.assign(ast.V, vType);
         return null;
     }
 
@@ -43,6 +44,7 @@ public final class Checker implements Visitor {
     public Object visitCallCommand(CallCommand ast, Object o) {
 
         Declaration binding = (Declaration) ast.I.visit(this, null);
+        escapes.call(binding);
         if (binding == null)
             reportUndeclared(ast.I);
         else if (binding instanceof ProcDeclaration) {
@@ -93,8 +95,10 @@ public final class Checker implements Visitor {
 
     public Object visitLetCommand(LetCommand ast, Object o) {
         idTable.openScope();
+        escapes.enterLet(ast);
         ast.D.visit(this, null);
         ast.C.visit(this, null);
+        escapes.exit();
         idTable.closeScope();
         return null;
     }
@@ -214,8 +218,11 @@ public final class Checker implements Visitor {
                             ast.O.spelling, ast.E2.position);
                 ast.value = foldBinary(ast);
                 ast.type = bbinding.RES;
+                if (binding == StdEnvironment.dynamicConcatDecl)
+                    escapes.allocation();
             } else {
                 OpFuncDeclaration bbinding = (OpFuncDeclaration) binding;
+                escapes.call(binding);
                 if (!e1Type.equals(bbinding.ARG1))
                     reporter.reportError("wrong argument type for \"%\"",
                             ast.O.spelling, ast.E1.position);
@@ -230,6 +237,7 @@ public final class Checker implements Visitor {
 
     public Object visitCallExpression(CallExpression ast, Object o) {
         Declaration binding = (Declaration) ast.I.visit(this, null);
+        escapes.call(binding);
         if (binding == null) {
             reportUndeclared(ast.I);
             ast.type = StdEnvironment.errorType;
@@ -299,6 +307,8 @@ public final class Checker implements Visitor {
     public Object visitRecordExpression(RecordExpression ast, Object o) {
         FieldTypeDenoter rType = (FieldTypeDenoter) ast.RA.visit(this, null);
         ast.type = new RecordTypeDenoter(rType, ast.position);
+        if (EscapeAnalysis.allocates(ast))
+            escapes.allocation();
         return ast.type;
     }
 
@@ -323,6 +333,7 @@ public final class Checker implements Visitor {
                 ast.type = ubinding.RES;
             } else {
                 OpFuncDeclaration ubinding = (OpFuncDeclaration) binding;
+                escapes.call(binding);
                 if (!eType.equals(ubinding.ARG1))
                     reporter.reportError("wrong argument type for \"%\"",
                             ast.O.spelling, ast.O.position);
@@ -360,8 +371,10 @@ public final class Checker implements Visitor {
             reporter.reportError("identifier \"%\" already declared",
                     ast.I.spelling, ast.position);
         idTable.openScope();
+        escapes.enterRoutine(ast);
         ast.FPS.visit(this, null);
         TypeDenoter eType = (TypeDenoter) ast.E.visit(this, null);
+        escapes.exit();
         idTable.closeScope();
         if (!ast.T.equals(eType))
             reporter.reportError("body of function \"%\" has wrong type",
@@ -376,6 +389,7 @@ public final class Checker implements Visitor {
             reporter.reportError("identifier \"%\" already declared",
                     ast.O.spelling, ast.position);
         idTable.openScope();
+        escapes.enterRoutine(ast);
         ast.FPS.visit(this, null);
         if (ast.FPS instanceof SingleFormalParameterSequence) {
             ast.arity = 1;
@@ -393,6 +407,7 @@ public final class Checker implements Visitor {
             reporter.reportError("operator function \"%\" must have 1 or 2 formal parameters", ast.O.spelling, ast.position);
         }
         TypeDenoter eType = (TypeDenoter) ast.E.visit(this, null);
+        escapes.exit();
         idTable.closeScope();
         if (!ast.T.equals(eType))
             reporter.reportError("body of function \"%\" has wrong type",
@@ -406,8 +421,10 @@ public final class Checker implements Visitor {
             reporter.reportError("identifier \"%\" already declared",
                     ast.I.spelling, ast.position);
         idTable.openScope();
+        escapes.enterRoutine(ast);
         ast.FPS.visit(this, null);
         ast.C.visit(this, null);
+        escapes.exit();
         idTable.closeScope();
         return null;
     }
@@ -456,6 +473,7 @@ public final class Checker implements Visitor {
             reporter.reportError("identifier \"%\" already declared",
                     ast.I.spelling, ast.position);
 
+        escapes.declareLocal(ast);
         return null;
     }
 
@@ -466,6 +484,7 @@ public final class Checker implements Visitor {
             reporter.reportError("identifier \"%\" already declared",
                     ast.I.spelling, ast.position);
 
+        escapes.declareLocal(ast);
         return null;
     }
 
@@ -557,6 +576,7 @@ public final class Checker implements Visitor {
         if (ast.duplicated)
             reporter.reportError("duplicated formal parameter \"%\"",
                     ast.I.spelling, ast.position);
+        escapes.declareLocal(ast);
         return null;
     }
 
@@ -589,6 +609,7 @@ public final class Checker implements Visitor {
         if (ast.duplicated)
             reporter.reportError("duplicated formal parameter \"%\"",
                     ast.I.spelling, ast.position);
+        escapes.declareNonLocal(ast);
         return null;
     }
 
@@ -598,6 +619,7 @@ public final class Checker implements Visitor {
         if (ast.duplicated)
             reporter.reportError("duplicated formal parameter \"%\"",
                     ast.I.spelling, ast.position);
+        escapes.declareNonLocal(ast);
         return null;
     }
 
@@ -607,6 +629,7 @@ public final class Checker implements Visitor {
         if (ast.duplicated)
             reporter.reportError("duplicated formal parameter \"%\"",
                     ast.I.spelling, ast.position);
+        escapes.declareNonLocal(ast);
         return null;
     }
 
@@ -1062,6 +1085,7 @@ public final class Checker implements Visitor {
 
     public void check(Program ast) {
         ast.visit(this, null);
+        escapes.finish();
     }
 
     /////////////////////////////////////////////////////////////////////////////
@@ -1073,6 +1097,7 @@ public final class Checker implements Visitor {
     }
 
     private IdentificationTable idTable;
+    private EscapeAnalysis escapes = new EscapeAnalysis();
     private static SourcePosition dummyPos = new SourcePosition();
     private ErrorReporter reporter;
 
@@ -1253,6 +1278,7 @@ public final class Checker implements Visitor {
                 new ConstFormalParameter(dummyI, StdEnvironment.integerType, dummyPos), dummyPos));
         StdEnvironment.geteolDecl = declareStdProc("geteol", new EmptyFormalParameterSequence(dummyPos));
         StdEnvironment.puteolDecl = declareStdProc("puteol", new EmptyFormalParameterSequence(dummyPos));
+        StdEnvironment.checkpointDecl = declareStdProc("checkpoint", new EmptyFormalParameterSequence(dummyPos));
         StdEnvironment.equalDecl = declareStdBinaryOp("=", StdEnvironment.anyType, StdEnvironment.anyType, StdEnvironment.booleanType);
         StdEnvironment.unequalDecl = declareStdBinaryOp("\\=", StdEnvironment.anyType, StdEnvironment.anyType, StdEnvironment.booleanType);
 
@@ -0,0 +1,189 @@
+package Triangle.ContextualAnalyzer;
+
+import Triangle.AbstractSyntaxTrees.*;
+import Triangle.StdEnvironment;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds the let commands and procedure bodies whose heap blocks can all be
+ * freed when they end, for the Checker, which reports each event of
+ * interest as it meets it.
+ * <p>
+ * A let command or procedure body is a region if it may allocate (build a
+ * recursive record or concatenate dynamic strings), directly or through
+ * the routines it calls, and no pointer is stored while it runs anywhere
+ * that outlives it: in a variable declared outside it, in a field of a
+ * heap block, or through a var, result or value-result parameter. A store
+ * made by a called routine that escapes the routine counts as escaping
+ * every caller, and so does any call of a procedure or function parameter.
+ * Functions are never regions, as their results may be pointers; the
+ * outermost let commands are not either, as nothing follows them.
+ */
+
+final class EscapeAnalysis {
+
+    private static final class Frame {
+        final AST node;             // LetCommand, routine declaration, or null for the program
+        final int routine;          // the index of the frame of the enclosing routine
+        final boolean candidate;    // may be a region
+        boolean allocates, escapes;
+        final ArrayList<Declaration> callees = new ArrayList<Declaration>();
+
+        Frame(AST node, int routine, boolean candidate) {
+            this.node = node;
+            this.routine = routine;
+            this.candidate = candidate;
+        }
+    }
+
+    private final ArrayList<Frame> stack = new ArrayList<Frame>();
+    private final ArrayList<Frame> frames = new ArrayList<Frame>();
+    private final HashMap<Declaration, Frame> routines = new HashMap<Declaration, Frame>();
+
+    // for each variable or parameter, the index of the frame it belongs
+    // to, or -1 if it may belong to a caller
+    private final HashMap<Declaration, Integer> depths = new HashMap<Declaration, Integer>();
+
+    EscapeAnalysis() {
+        stack.add(new Frame(null, 0, false));
+    }
+
+    private Frame top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    void enterLet(LetCommand ast) {
+        Frame frame = new Frame(ast, top().routine, stack.size() > 1);
+        stack.add(frame);
+        frames.add(frame);
+    }
+
+    void enterRoutine(Declaration ast) {
+        Frame frame = new Frame(ast, stack.size(), ast instanceof ProcDeclaration);
+        stack.add(frame);
+        frames.add(frame);
+        routines.put(ast, frame);
+    }
+
+    void exit() {
+        stack.remove(stack.size() - 1);
+    }
+
+    void declareLocal(Declaration ast) {
+        depths.put(ast, stack.size() - 1);
+    }
+
+    void declareNonLocal(Declaration ast) {
+        depths.put(ast, -1);
+    }
+
+    void allocation() {
+        for (int i = stack.size() - 1; i >= top().routine; i--)
+            stack.get(i).allocates = true;
+    }
+
+    void call(Declaration binding) {
+        if ((binding instanceof ProcFormalParameter) || (binding instanceof FuncFormalParameter)) {
+            for (int i = stack.size() - 1; i >= top().routine; i--) {
+                stack.get(i).allocates = true;
+                stack.get(i).escapes = true;
+            }
+        } else if (binding != null) {
+            for (int i = stack.size() - 1; i >= top().routine; i--)
+                stack.get(i).callees.add(binding);
+        }
+    }
+
+    void assign(Vname V, TypeDenoter type) {
+        if (!mayHoldPointers(type))
+            return;
+        int depth = depth(V);
+        for (int i = stack.size() - 1; (i > depth) && (i >= top().routine); i--)
+            stack.get(i).escapes = true;
+    }
+
+    private int depth(Vname V) {
+        // Returns the index of the frame holding the variable V names,
+        // or -1 if it may lie outside the current routine or in the heap.
+        if (V instanceof SimpleVname) {
+            Integer depth = depths.get(((SimpleVname) V).I.decl);
+            return (depth == null) ? -1 : depth;
+        } else if (V instanceof DotVname) {
+            Vname record = ((DotVname) V).V;
+            return (record.type == null) || record.type.recursive ? -1 : depth(record);
+        } else {
+            Vname array = ((SubscriptVname) V).V;
+            return (array.type instanceof DynamicStringTypeDenoter) ? -1 : depth(array);
+        }
+    }
+
+    private static boolean mayHoldPointers(TypeDenoter type) {
+        if (type == null)
+            return false;
+        if (type.recursive || (type instanceof DynamicStringTypeDenoter))
+            return true;
+        if (type instanceof ArrayTypeDenoter)
+            return mayHoldPointers(((ArrayTypeDenoter) type).T);
+        if (type instanceof RecordTypeDenoter)
+            return mayHoldPointers(((RecordTypeDenoter) type).FT);
+        if (type instanceof MultipleFieldTypeDenoter)
+            return mayHoldPointers(((MultipleFieldTypeDenoter) type).T)
+                    || mayHoldPointers(((MultipleFieldTypeDenoter) type).FT);
+        if (type instanceof SingleFieldTypeDenoter)
+            return mayHoldPointers(((SingleFieldTypeDenoter) type).T);
+        return false;
+    }
+
+    static boolean allocates(RecordExpression ast) {
+        // A record expression builds a heap block iff one of its fields is
+        // of a recursive type, or nil, as the Encoder decides.
+        FieldTypeDenoter FT = ((RecordTypeDenoter) ast.type).FT;
+        while (FT instanceof MultipleFieldTypeDenoter) {
+            if (isPointer(((MultipleFieldTypeDenoter) FT).T))
+                return true;
+            FT = ((MultipleFieldTypeDenoter) FT).FT;
+        }
+        return (FT instanceof SingleFieldTypeDenoter) && isPointer(((SingleFieldTypeDenoter) FT).T);
+    }
+
+    private static boolean isPointer(TypeDenoter type) {
+        return (type != null) && (type.recursive || (type == StdEnvironment.nilType));
+    }
+
+    /**
+     * Propagates allocation and escape from callees to callers, and marks
+     * the let commands and procedure declarations that are regions.
+     */
+    void finish() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Frame frame : frames)
+                for (Declaration callee : frame.callees) {
+                    Frame called = routines.get(callee);
+                    if (called == null)
+                        continue;       // a standard routine
+                    if (called.allocates && !frame.allocates) {
+                        frame.allocates = true;
+                        changed = true;
+                    }
+                    if (called.escapes && !frame.escapes) {
+                        frame.escapes = true;
+                        changed = true;
+                    }
+                }
+        }
+        for (Frame frame : frames)
+            if (frame.node instanceof LetCommand)
+                ((LetCommand) frame.node).region = frame.candidate && frame.allocates && !frame.escapes;
+        for (Frame frame : frames)
+            if (frame.node instanceof ProcDeclaration) {
+                ProcDeclaration proc = (ProcDeclaration) frame.node;
+                proc.region = frame.candidate && frame.allocates && !frame.escapes;
+                if (proc.region && (proc.C instanceof LetCommand))
+                    ((LetCommand) proc.C).region = false;   // its region would be the same
+            }
+    }
+}
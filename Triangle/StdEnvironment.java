@@ -40,7 +40,7 @@ public final class StdEnvironment {
             equalDecl, unequalDecl, lessDecl, notlessDecl, greaterDecl, notgreaterDecl, fixedLexDecl, dynamicLexDecl, dynamicConcatDecl;
 
     public static ProcDeclaration
-            getDecl, putDecl, getintDecl, putintDecl, geteolDecl, puteolDecl;
+            getDecl, putDecl, getintDecl, putintDecl, geteolDecl, puteolDecl, checkpointDecl;
 
     public static FuncDeclaration
             chrDecl, ordDecl, eolDecl, eofDecl;